@@ -0,0 +1,97 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of the hot path of the pool: getConnectionWithTimeout followed
+ * by releaseConnection, against in-process loopback hosts.
+ * The number of threads is set by BenchmarkRunner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcquireReleaseBenchmark {
+    /** Number of hosts in the pool */
+    @Param({"2", "20", "500"})
+    int hosts;
+
+    /**
+     * Powers of the hosts:
+     *  - uniform: all hosts have power 1
+     *  - skewed: powers from 1 to 10
+     *  - dominant: the first host has as much power as all the others together
+     */
+    @Param({"uniform", "skewed", "dominant"})
+    String power;
+
+    LoopbackHttpStub stub;
+    FailoverHttpClient client;
+    MonitoredHttpConnectionManager manager;
+    final HostConfiguration config = new HostConfiguration();
+
+    static int powerOf(String power, int host, int hosts) {
+        if ("skewed".equals(power)) return 1 + host % 10;
+        if ("dominant".equals(power)) return host == 0 ? Math.max(1, hosts - 1) : 1;
+        return 1;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        Logger.getLogger("httpclient").setLevel(Level.ERROR);
+        Logger.getLogger("org").setLevel(Level.ERROR);
+        stub = new LoopbackHttpStub(hosts);
+        client = new FailoverHttpClient();
+        client.setIsAlivePath("isAlive");
+        for (int i = 0; i < hosts; i++) {
+            client.addHost("127.0.0.1", stub.getPort(i), powerOf(power, i, hosts));
+        }
+        client.startMonitoring(4);
+        manager = client.getConnectionManager();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.shutdown();
+        stub.close();
+    }
+
+    @Benchmark
+    public HttpConnection acquireRelease() throws Exception {
+        HttpConnection conn = manager.getConnectionWithTimeout(config, 5000);
+        manager.releaseConnection(conn);
+        return conn;
+    }
+}
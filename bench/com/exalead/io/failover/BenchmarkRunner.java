@@ -0,0 +1,47 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import org.apache.log4j.BasicConfigurator;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs AcquireReleaseBenchmark for several numbers of threads, with the GC profiler for the
+ * allocation rate. The sample time mode gives the latency percentiles.
+ * 
+ * Usage: BenchmarkRunner [threads,...] [hosts,...]
+ * Defaults: 1,4,16,64,256 threads, and the hosts of the @Param of the benchmark.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        BasicConfigurator.configure();
+        String threads = args.length > 0 ? args[0] : "1,4,16,64,256";
+        for (String t : threads.split(",")) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(AcquireReleaseBenchmark.class.getName())
+                .threads(Integer.parseInt(t.trim()))
+                .addProfiler(GCProfiler.class)
+                .result("build/bench/acquire-release-" + t.trim() + "t.json")
+                .resultFormat(ResultFormatType.JSON);
+            if (args.length > 1) {
+                options.param("hosts", args[1].split(","));
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.exalead.io.failover.FaultInjectingHttpStub.Fault;
+
+/**
+ * Measures how the FailoverHttpClient reacts to each kind of fault of a host.
+ * 
+ * For each scenario, a fresh pool of HOSTS hosts gets a fixed load (CLIENT_THREADS threads,
+ * each one pausing THINK_TIME between its requests). After a warmup, the fault is injected
+ * on the first host for FAULT_DURATION, then removed. We report:
+ *  - the time to detect: until the host is taken out of the rotation (down or circuit open)
+ *  - the time to recover: from the removal of the fault until the host is back in the rotation
+ *  - the number of failed requests, and the latency percentiles, during the fault
+ *  - the number of real requests that the faulty host received during the fault
+ * All the parameters are fixed, so that the runs are comparable.
+ * 
+ * Usage: FailoverScenarioBenchmark [breaker] [fault,...]
+ * "breaker" enables the circuit breakers (with slow requests detection).
+ */
+public class FailoverScenarioBenchmark {
+    static final int HOSTS = 4;
+    static final int CLIENT_THREADS = 8;
+    static final long THINK_TIME = 2;
+    static final int REQUEST_TIMEOUT = 1000;
+    static final int RETRIES = 2;
+    static final long WARMUP = 2000;
+    static final long FAULT_DURATION = 5000;
+    static final long RECOVERY_MAX = 5000;
+    static final long SLOW_DELAY = 300;
+
+    static class Result {
+        Fault fault;
+        long detectTime = -1;
+        long recoverTime = -1;
+        long requests;
+        long errors;
+        long toFaultyHost;
+        long p50, p99, max;
+    }
+
+    /** The client threads. Latencies and errors are only recorded while "recording" */
+    static class Load {
+        final FailoverHttpClient client;
+        final List<Thread> threads = new ArrayList<Thread>();
+        volatile boolean stop;
+        volatile boolean recording;
+        /* One array of latencies (in microseconds) per thread, to avoid contention */
+        final long[][] latencies = new long[CLIENT_THREADS][];
+        final int[] counts = new int[CLIENT_THREADS];
+        final long[] errors = new long[CLIENT_THREADS];
+
+        Load(FailoverHttpClient client) {
+            this.client = client;
+        }
+
+        void start() {
+            for (int i = 0; i < CLIENT_THREADS; i++) {
+                final int id = i;
+                latencies[i] = new long[1024];
+                Thread t = new Thread("Load-" + i) {
+                    public void run() {
+                        loop(id);
+                    }
+                };
+                threads.add(t);
+                t.start();
+            }
+        }
+
+        void loop(int id) {
+            long n = 0;
+            while (!stop) {
+                GetMethod method = new GetMethod("/request/" + id + "/" + (n++));
+                long start = System.nanoTime();
+                boolean failed = false;
+                try {
+                    client.executeMethod(method, REQUEST_TIMEOUT, RETRIES);
+                    method.getResponseBody();
+                } catch (IOException e) {
+                    failed = true;
+                } finally {
+                    method.releaseConnection();
+                }
+                long latency = (System.nanoTime() - start) / 1000;
+                if (recording) {
+                    synchronized(this) {
+                        if (failed) errors[id]++;
+                        if (counts[id] == latencies[id].length) {
+                            latencies[id] = Arrays.copyOf(latencies[id], counts[id] * 2);
+                        }
+                        latencies[id][counts[id]++] = latency;
+                    }
+                }
+                try { Thread.sleep(THINK_TIME); } catch (InterruptedException e) { return; }
+            }
+        }
+
+        void stop() throws InterruptedException {
+            stop = true;
+            for (Thread t : threads) t.join();
+        }
+
+        /** Fill the result with what was recorded */
+        synchronized void fill(Result r) {
+            int total = 0;
+            for (int i = 0; i < CLIENT_THREADS; i++) {
+                total += counts[i];
+                r.errors += errors[i];
+            }
+            long[] all = new long[total];
+            int pos = 0;
+            for (int i = 0; i < CLIENT_THREADS; i++) {
+                System.arraycopy(latencies[i], 0, all, pos, counts[i]);
+                pos += counts[i];
+            }
+            Arrays.sort(all);
+            r.requests = total;
+            if (total > 0) {
+                r.p50 = all[(int)Math.min(total - 1, Math.ceil(total * 0.50) - 1)];
+                r.p99 = all[(int)Math.min(total - 1, Math.ceil(total * 0.99) - 1)];
+                r.max = all[total - 1];
+            }
+        }
+    }
+
+    static boolean isExcluded(HostState host) {
+        return host.isDown() || host.getCircuitBreakerState() == CircuitBreaker.State.OPEN;
+    }
+
+    static Result run(Fault fault, boolean breaker) throws Exception {
+        Result r = new Result();
+        r.fault = fault;
+        FaultInjectingHttpStub stub = new FaultInjectingHttpStub(HOSTS);
+        FailoverHttpClient client = new FailoverHttpClient();
+        client.setIsAlivePath("isAlive");
+        if (breaker) {
+            client.setCircuitBreaker(0.5, 20, 2000);
+            client.setCircuitBreakerSlowRequests(SLOW_DELAY / 2, 0.8);
+        }
+        for (int i = 0; i < HOSTS; i++) {
+            client.addHost("127.0.0.1", stub.getPort(i), 1);
+            stub.setSlowDelay(i, SLOW_DELAY);
+        }
+        client.startMonitoring(2);
+        HostState faulty = client.getConnectionManager().hosts.get(0);
+
+        Load load = new Load(client);
+        load.start();
+        Thread.sleep(WARMUP);
+
+        long requestsBefore = stub.getRequests(0);
+        load.recording = true;
+        long start = System.currentTimeMillis();
+        stub.setFault(0, fault);
+        long now;
+        while ((now = System.currentTimeMillis()) - start < FAULT_DURATION) {
+            if (r.detectTime < 0 && isExcluded(faulty)) {
+                r.detectTime = now - start;
+            }
+            Thread.sleep(1);
+        }
+        load.recording = false;
+        r.toFaultyHost = stub.getRequests(0) - requestsBefore;
+        load.fill(r);
+
+        /* Remove the fault and wait for the host to come back */
+        start = System.currentTimeMillis();
+        stub.setFault(0, Fault.NONE);
+        while ((now = System.currentTimeMillis()) - start < RECOVERY_MAX) {
+            if (!isExcluded(faulty)) {
+                r.recoverTime = now - start;
+                break;
+            }
+            Thread.sleep(1);
+        }
+
+        load.stop();
+        client.shutdown();
+        stub.close();
+        return r;
+    }
+
+    static String ms(long micros) {
+        return String.format(Locale.ROOT, "%.1f", micros / 1000.0);
+    }
+
+    static String time(long ms) {
+        return ms < 0 ? "n/a" : Long.toString(ms);
+    }
+
+    public static void main(String[] args) throws Exception {
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.ERROR);
+
+        boolean breaker = false;
+        List<Fault> faults = new ArrayList<Fault>();
+        for (String arg : args) {
+            if (arg.equals("breaker")) {
+                breaker = true;
+            } else {
+                for (String f : arg.split(",")) {
+                    faults.add(Fault.valueOf(f.trim().toUpperCase(Locale.ROOT)));
+                }
+            }
+        }
+        if (faults.isEmpty()) {
+            faults.addAll(Arrays.asList(Fault.REFUSE, Fault.RESET, Fault.HANG, Fault.NOT_ALIVE, Fault.SLOW));
+        }
+
+        new File("build/bench").mkdirs();
+        PrintWriter csv = new PrintWriter(new FileWriter("build/bench/failover-scenarios.csv"));
+        csv.println("fault,breaker,detect_ms,recover_ms,requests,errors,to_faulty_host,p50_ms,p99_ms,max_ms");
+        System.out.println(String.format(Locale.ROOT, "%-10s %10s %11s %9s %7s %9s %8s %8s %8s",
+                "fault", "detect ms", "recover ms", "requests", "errors", "to faulty", "p50 ms", "p99 ms", "max ms"));
+        for (Fault fault : faults) {
+            Result r = run(fault, breaker);
+            System.out.println(String.format(Locale.ROOT, "%-10s %10s %11s %9d %7d %9d %8s %8s %8s",
+                    fault, time(r.detectTime), time(r.recoverTime), r.requests, r.errors, r.toFaultyHost,
+                    ms(r.p50), ms(r.p99), ms(r.max)));
+            csv.println(fault + "," + breaker + "," + r.detectTime + "," + r.recoverTime + "," + r.requests + "," +
+                    r.errors + "," + r.toFaultyHost + "," + ms(r.p50) + "," + ms(r.p99) + "," + ms(r.max));
+        }
+        csv.close();
+    }
+}
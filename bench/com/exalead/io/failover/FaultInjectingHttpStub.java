@@ -0,0 +1,259 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process HTTP hosts on the loopback interface, on which faults can be injected
+ * at any time, to measure how the pool reacts.
+ * Requests on "/isAlive" are the checks of the pool, the other ones are the real requests.
+ */
+public class FaultInjectingHttpStub {
+    public enum Fault {
+        /** Normal behaviour */
+        NONE,
+        /** The host is down: the listening socket and all connections are closed */
+        REFUSE,
+        /** The connection is reset (TCP RST) in the middle of each response */
+        RESET,
+        /** Connections are accepted, but requests are never answered */
+        HANG,
+        /** The host is going down as planned: isAlive answers 503, other requests still work */
+        NOT_ALIVE,
+        /** Each response is delayed by the slow delay */
+        SLOW
+    }
+
+    static final String BODY = "OK";
+
+    /** One host: a listening port and its connections */
+    class Host {
+        final int port;
+        volatile Fault fault = Fault.NONE;
+        volatile long slowDelay = 300;
+        ServerSocket server;
+        final Set<Socket> connections = new HashSet<Socket>();
+        final AtomicLong requests = new AtomicLong();
+
+        Host(ServerSocket server) {
+            this.server = server;
+            this.port = server.getLocalPort();
+        }
+
+        synchronized void listen() throws IOException {
+            if (server != null) return;
+            ServerSocket s = new ServerSocket();
+            s.setReuseAddress(true);
+            s.bind(new InetSocketAddress(loopback, port), 1024);
+            server = s;
+            startAccept(this, s);
+        }
+
+        /** Close the listening socket and all the connections, as if the process had crashed */
+        synchronized void crash() {
+            try { if (server != null) server.close(); } catch (IOException e) {}
+            server = null;
+            for (Socket s : connections) {
+                try { s.close(); } catch (IOException e) {}
+            }
+            connections.clear();
+        }
+
+        synchronized boolean register(Socket s) {
+            if (server == null) return false;
+            connections.add(s);
+            return true;
+        }
+
+        synchronized void unregister(Socket s) {
+            connections.remove(s);
+        }
+    }
+
+    private final InetAddress loopback;
+    private final List<Host> hosts = new ArrayList<Host>();
+    private final ExecutorService threads;
+    private volatile boolean closed;
+
+    public FaultInjectingHttpStub(int nhosts) throws IOException {
+        loopback = InetAddress.getByName("127.0.0.1");
+        threads = Executors.newCachedThreadPool(new ThreadFactory() {
+            int count;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FaultInjectingHttpStub-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < nhosts; i++) {
+            ServerSocket server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(loopback, 0), 1024);
+            Host host = new Host(server);
+            hosts.add(host);
+            startAccept(host, server);
+        }
+    }
+
+    public int size() {
+        return hosts.size();
+    }
+
+    public int getPort(int host) {
+        return hosts.get(host).port;
+    }
+
+    /** Number of real requests (not isAlive) received by a host */
+    public long getRequests(int host) {
+        return hosts.get(host).requests.get();
+    }
+
+    /** Inject a fault on a host, or remove it with Fault.NONE */
+    public void setFault(int index, Fault fault) throws IOException {
+        Host host = hosts.get(index);
+        host.fault = fault;
+        if (fault == Fault.REFUSE) {
+            host.crash();
+        } else {
+            host.listen();
+        }
+    }
+
+    public void setSlowDelay(int index, long delay) {
+        hosts.get(index).slowDelay = delay;
+    }
+
+    private void startAccept(final Host host, final ServerSocket server) {
+        threads.execute(new Runnable() {
+            public void run() {
+                while (!closed && !server.isClosed()) {
+                    try {
+                        final Socket s = server.accept();
+                        if (!host.register(s)) {
+                            s.close();
+                            continue;
+                        }
+                        threads.execute(new Runnable() {
+                            public void run() {
+                                serve(host, s);
+                            }
+                        });
+                    } catch (IOException e) {
+                        /* Closed */
+                    }
+                }
+            }
+        });
+    }
+
+    private void serve(Host host, Socket s) {
+        try {
+            s.setTcpNoDelay(true);
+            InputStream is = s.getInputStream();
+            OutputStream os = s.getOutputStream();
+            String requestLine;
+            while (!closed && (requestLine = readRequest(is)) != null) {
+                boolean isAlive = requestLine.startsWith("GET /isAlive");
+                if (!isAlive) host.requests.incrementAndGet();
+                Fault fault = host.fault;
+                switch (fault) {
+                case HANG:
+                    /* Never answer, until the client gives up or the fault is removed */
+                    while (!closed && host.fault == Fault.HANG) {
+                        Thread.sleep(10);
+                    }
+                    return;
+                case RESET:
+                    os.write("HTTP/1.1 200 OK\r\nContent-Le".getBytes());
+                    os.flush();
+                    /* Linger 0: close() sends a RST */
+                    s.setSoLinger(true, 0);
+                    return;
+                case SLOW:
+                    Thread.sleep(host.slowDelay);
+                    break;
+                default:
+                    break;
+                }
+                int status = (isAlive && fault == Fault.NOT_ALIVE) ? 503 : 200;
+                os.write(response(status));
+                os.flush();
+            }
+        } catch (IOException e) {
+            /* Connection closed */
+        } catch (InterruptedException e) {
+            /* Stub closed */
+        } finally {
+            host.unregister(s);
+            try { s.close(); } catch (IOException e) {}
+        }
+    }
+
+    static byte[] response(int status) {
+        return ("HTTP/1.1 " + status + (status == 200 ? " OK" : " Service Unavailable") + "\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Content-Length: " + BODY.length() + "\r\n" +
+                "\r\n" + BODY).getBytes();
+    }
+
+    /**
+     * Read the headers of a request (only GETs without body are expected)
+     * @return the request line, null at the end of the stream
+     */
+    static String readRequest(InputStream is) throws IOException {
+        StringBuilder line = new StringBuilder();
+        boolean firstLine = true;
+        int matched = 0;
+        while (matched < 4) {
+            int c = is.read();
+            if (c < 0) return null;
+            if (firstLine) {
+                if (c == '\r' || c == '\n') {
+                    firstLine = false;
+                } else {
+                    line.append((char)c);
+                }
+            }
+            if (c == (matched % 2 == 0 ? '\r' : '\n')) {
+                matched++;
+            } else {
+                matched = (c == '\r') ? 1 : 0;
+            }
+        }
+        return line.toString();
+    }
+
+    public void close() {
+        closed = true;
+        for (Host host : hosts) {
+            host.crash();
+        }
+        threads.shutdownNow();
+    }
+}
@@ -0,0 +1,132 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * In-process HTTP server on the loopback interface, used as the hosts of a pool in the
+ * benchmarks. Each "host" is a listening port. It answers "200 OK" to any request,
+ * with keep-alive, and a single write per response so that Nagle does not add delays.
+ */
+public class LoopbackHttpStub {
+    static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Content-Length: 2\r\n" +
+            "\r\n" +
+            "OK").getBytes();
+
+    private final List<ServerSocket> servers = new ArrayList<ServerSocket>();
+    private final ExecutorService threads;
+    private volatile boolean closed;
+
+    /** Start a stub with "nhosts" listening ports */
+    public LoopbackHttpStub(int nhosts) throws IOException {
+        threads = Executors.newCachedThreadPool(new ThreadFactory() {
+            int count;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LoopbackHttpStub-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        for (int i = 0; i < nhosts; i++) {
+            final ServerSocket server = new ServerSocket(0, 1024, loopback);
+            servers.add(server);
+            threads.execute(new Runnable() {
+                public void run() {
+                    accept(server);
+                }
+            });
+        }
+    }
+
+    public int size() {
+        return servers.size();
+    }
+
+    public int getPort(int host) {
+        return servers.get(host).getLocalPort();
+    }
+
+    private void accept(ServerSocket server) {
+        while (!closed) {
+            try {
+                final Socket s = server.accept();
+                threads.execute(new Runnable() {
+                    public void run() {
+                        serve(s);
+                    }
+                });
+            } catch (IOException e) {
+                /* Closed */
+            }
+        }
+    }
+
+    /** Serve the requests of a connection until the client closes it */
+    protected void serve(Socket s) {
+        try {
+            s.setTcpNoDelay(true);
+            InputStream is = s.getInputStream();
+            OutputStream os = s.getOutputStream();
+            while (!closed && readRequest(is)) {
+                os.write(RESPONSE);
+                os.flush();
+            }
+        } catch (IOException e) {
+            /* Connection closed by the client */
+        } finally {
+            try { s.close(); } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Read the headers of a request (the benchmarks only send GETs, without body)
+     * @return false at the end of the stream
+     */
+    static boolean readRequest(InputStream is) throws IOException {
+        /* Wait for the empty line: \r\n\r\n */
+        int matched = 0;
+        while (matched < 4) {
+            int c = is.read();
+            if (c < 0) return false;
+            if (c == (matched % 2 == 0 ? '\r' : '\n')) {
+                matched++;
+            } else {
+                matched = (c == '\r') ? 1 : 0;
+            }
+        }
+        return true;
+    }
+
+    public void close() {
+        closed = true;
+        for (ServerSocket server : servers) {
+            try { server.close(); } catch (IOException e) {}
+        }
+        threads.shutdownNow();
+    }
+}
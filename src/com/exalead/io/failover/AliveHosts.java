@@ -0,0 +1,114 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+
+package com.exalead.io.failover;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the hosts of a pool that are currently alive.
+ * It is rebuilt each time the topology changes or a host goes up or down,
+ * and can be read without any lock.
+ */
+public final class AliveHosts {
+    static final AliveHosts EMPTY = new AliveHosts(new HostState[0]);
+
+    /** The alive hosts, with a strictly positive power */
+    final HostState[] hosts;
+    /** cumulativePower[i] is the sum of the powers of hosts[0..i] */
+    final int[] cumulativePower;
+    final int totalPower;
+
+    private AliveHosts(HostState[] hosts) {
+        this.hosts = hosts;
+        this.cumulativePower = new int[hosts.length];
+        int total = 0;
+        for (int i = 0; i < hosts.length; i++) {
+            total += hosts[i].power;
+            cumulativePower[i] = total;
+        }
+        this.totalPower = total;
+    }
+
+    static AliveHosts build(List<HostState> all) {
+        List<HostState> up = new ArrayList<HostState>();
+        List<HostState> alive = new ArrayList<HostState>();
+        for (HostState hs : all) {
+            if (!hs.down && hs.power > 0) {
+                up.add(hs);
+                if (hs.breaker.isClosedOrHalfOpen()) {
+                    alive.add(hs);
+                }
+            }
+        }
+        /* If all the up hosts have an open circuit breaker, it's better to try them than to fail everything */
+        if (alive.isEmpty()) alive = up;
+        if (alive.isEmpty()) return EMPTY;
+        return new AliveHosts(alive.toArray(new HostState[alive.size()]));
+    }
+
+    /** Get the snapshot of the alive hosts that are not in "excluded" */
+    AliveHosts without(Collection<HostState> excluded) {
+        List<HostState> kept = new ArrayList<HostState>(hosts.length);
+        for (HostState hs : hosts) {
+            if (!excluded.contains(hs)) {
+                kept.add(hs);
+            }
+        }
+        if (kept.size() == hosts.length) return this;
+        if (kept.isEmpty()) return EMPTY;
+        return new AliveHosts(kept.toArray(new HostState[kept.size()]));
+    }
+
+    public boolean isEmpty() {
+        return hosts.length == 0;
+    }
+
+    public int size() {
+        return hosts.length;
+    }
+
+    public HostState get(int index) {
+        return hosts[index];
+    }
+
+    /** Sum of the powers of all alive hosts */
+    public int getTotalPower() {
+        return totalPower;
+    }
+
+    /** 
+     * Get the index of the host that owns the given position in [0, totalPower[, each host
+     * owning a range of positions as wide as its power. O(log n)
+     */
+    public int getIndexByPosition(int position) {
+        int lo = 0, hi = hosts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulativePower[mid] > position) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /** Get the host that owns the given position in [0, totalPower[. O(log n) */
+    public HostState getByPosition(int position) {
+        return hosts[getIndexByPosition(position)];
+    }
+}
@@ -0,0 +1,216 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Circuit breaker of a host, driven by the outcomes of the real requests.
+ * 
+ * The outcomes are counted in a rolling time window. When there are enough requests in the
+ * window and the rate of failures (or of slow requests) is too high, the breaker opens: the
+ * host is removed from the rotation, even if it still answers isAlive.
+ * After some time, the monitoring thread puts it half-open: a few trial requests are allowed,
+ * and the breaker closes if they all succeed, or opens again at the first failure.
+ * 
+ * This is independent of the "down" flag of the host, which is driven by connections and
+ * isAlive. The breaker has its own lock (a ReentrantLock, like the other locks of the pool,
+ * so that virtual threads don't pin their carrier); the state can be read without it.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Settings shared by the breakers of all hosts of a pool */
+    static class Config {
+        /** The breakers are disabled by default: they need the monitoring to leave the open state */
+        volatile boolean enabled;
+        /** Open when the rate of failures in the window reaches this */
+        volatile double failureRateThreshold = 0.5;
+        /** Requests longer than this (in ms) are slow, 0 to ignore the latency */
+        volatile long slowRequestTime;
+        /** Open when the rate of slow requests in the window reaches this */
+        volatile double slowRateThreshold = 0.8;
+        /** Minimum number of requests in the window to take a decision */
+        volatile int minimumRequests = 20;
+        /** Duration of the rolling window, in ms */
+        volatile long windowTime = 10000;
+        /** Time during which the breaker stays open before trying again, in ms */
+        volatile long openTime = 5000;
+        /** Number of successful trial requests needed to close the breaker */
+        volatile int halfOpenRequests = 3;
+    }
+
+    static final int BUCKETS = 10;
+
+    private final Config config;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile State state = State.CLOSED;
+    private long openTime;
+    /* Half-open: number of trial requests in progress and succeeded */
+    private int trialsInProgress;
+    private int trialsSucceeded;
+
+    /* Rolling window: each bucket covers windowTime / BUCKETS */
+    private final long[] bucketStart = new long[BUCKETS];
+    private final int[] requests = new int[BUCKETS];
+    private final int[] failures = new int[BUCKETS];
+    private final int[] slowRequests = new int[BUCKETS];
+
+    CircuitBreaker(Config config) {
+        this.config = config;
+    }
+
+    /** Current state. Does not require the lock */
+    public State getState() {
+        return state;
+    }
+
+    /** Is the host in the rotation (closed or half-open). Does not require the lock */
+    boolean isClosedOrHalfOpen() {
+        return state != State.OPEN;
+    }
+
+    /** 
+     * Take the permission to send a request.
+     * @return false if the breaker is open, or half-open with enough trial requests in progress
+     */
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (!config.enabled) return true;
+            switch (state) {
+            case CLOSED: return true;
+            case OPEN: return false;
+            default:
+                if (trialsInProgress >= config.halfOpenRequests) return false;
+                trialsInProgress++;
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Give back a permission that was not used, for example because the acquisition failed */
+    void release() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN && trialsInProgress > 0) {
+                trialsInProgress--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record the outcome of a request on this host.
+     * @return true if the state of the breaker changed
+     */
+    boolean record(boolean failure, long latency, long now) {
+        lock.lock();
+        try {
+            if (!config.enabled) return false;
+            long slowTime = config.slowRequestTime;
+            boolean slow = slowTime > 0 && latency > slowTime;
+
+            if (state == State.HALF_OPEN) {
+                if (trialsInProgress > 0) trialsInProgress--;
+                if (failure || slow) {
+                    open(now);
+                    return true;
+                }
+                if (++trialsSucceeded >= config.halfOpenRequests) {
+                    state = State.CLOSED;
+                    resetWindow();
+                    return true;
+                }
+                return false;
+            }
+            if (state == State.OPEN) {
+                /* Requests that were started before the opening */
+                return false;
+            }
+
+            int idx = currentBucket(now);
+            requests[idx]++;
+            if (failure) failures[idx]++;
+            if (slow) slowRequests[idx]++;
+
+            int total = 0, failed = 0, slowed = 0;
+            long windowStart = now - config.windowTime;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (bucketStart[i] > windowStart) {
+                    total += requests[i];
+                    failed += failures[i];
+                    slowed += slowRequests[i];
+                }
+            }
+            if (total < config.minimumRequests) return false;
+            if (failed >= config.failureRateThreshold * total ||
+                    (slowTime > 0 && slowed >= config.slowRateThreshold * total)) {
+                open(now);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the monitoring: if the breaker has been open for long enough, put it half-open
+     * @return true if the state of the breaker changed
+     */
+    boolean tryHalfOpen(long now) {
+        lock.lock();
+        try {
+            if (state != State.OPEN || now - openTime < config.openTime) return false;
+            state = State.HALF_OPEN;
+            trialsInProgress = 0;
+            trialsSucceeded = 0;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openTime = now;
+        resetWindow();
+    }
+
+    private int currentBucket(long now) {
+        long bucketTime = Math.max(1, config.windowTime / BUCKETS);
+        long start = now - now % bucketTime;
+        int idx = (int)((now / bucketTime) % BUCKETS);
+        if (bucketStart[idx] != start) {
+            bucketStart[idx] = start;
+            requests[idx] = 0;
+            failures[idx] = 0;
+            slowRequests[idx] = 0;
+        }
+        return idx;
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketStart[i] = 0;
+            requests[i] = 0;
+            failures[i] = 0;
+            slowRequests[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+
+package com.exalead.io.failover;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+
+/**
+ * Enforces the maximum total number of connections of a pool.
+ * Threads that can't get a connection wait in a FIFO queue, and are served in order
+ * when connections are released. The limit is read at each call, so it can be changed
+ * at runtime.
+ * Uses a java.util.concurrent lock rather than a monitor, so that waiting virtual threads
+ * don't pin their carrier thread.
+ */
+class ConnectionLimiter {
+    private static class Waiter {
+    }
+
+    /** Number of connections currently leased */
+    private int leased;
+    /** Number of releases (and other changes signaled by the pool) since the creation */
+    private long changes;
+    private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signaled on each release, and each time the head of the queue changes */
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * Take a connection slot, waiting in FIFO order if the limit is reached.
+     * @param max maximum number of leased connections, 0 for no limit
+     * @param deadline date after which we give up, 0 to wait indefinitely
+     */
+    void acquire(int max, long deadline) throws ConnectionPoolTimeoutException {
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && (max <= 0 || leased < max)) {
+                leased++;
+                return;
+            }
+            Waiter w = new Waiter();
+            waiters.addLast(w);
+            try {
+                while (waiters.getFirst() != w || (max > 0 && leased >= max)) {
+                    await(deadline, "Timeout waiting for connection (max " + max + " connections)");
+                }
+                leased++;
+            } finally {
+                waiters.remove(w);
+                /* Let the next waiter check if it can go */
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Give back a connection slot */
+    void release() {
+        lock.lock();
+        try {
+            leased--;
+            changes++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake up the threads in awaitChange without releasing a connection, for example
+     * when a host comes back in the rotation.
+     */
+    void signalChange() {
+        lock.lock();
+        try {
+            changes++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Get the number of changes so far, to be used with awaitChange */
+    long getChangeCount() {
+        lock.lock();
+        try {
+            return changes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a connection is released (or a change is signaled) after "changeCount" was read.
+     * @param deadline date after which we give up, 0 to wait indefinitely
+     */
+    void awaitChange(long changeCount, long deadline) throws ConnectionPoolTimeoutException {
+        lock.lock();
+        try {
+            while (changes == changeCount) {
+                await(deadline, "Timeout waiting for connection (all hosts are saturated)");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getLeased() {
+        lock.lock();
+        try {
+            return leased;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Must be called with the lock */
+    private void await(long deadline, String message) throws ConnectionPoolTimeoutException {
+        long remaining = 0;
+        if (deadline > 0) {
+            remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new ConnectionPoolTimeoutException(message);
+            }
+        }
+        try {
+            if (remaining > 0) {
+                changed.await(remaining, TimeUnit.MILLISECONDS);
+            } else {
+                changed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionPoolTimeoutException("Interrupted while waiting for connection");
+        }
+    }
+}
@@ -15,17 +15,31 @@
 package com.exalead.io.failover;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.log4j.Logger;
@@ -35,6 +49,9 @@ public class FailoverHttpClient {
     protected HttpClient client;
     protected List<PoolMonitoringThread> threads = new ArrayList<PoolMonitoringThread>();
     
+    /** Name of the pool in the PoolsRegistry, null if not registered */
+    protected String poolName;
+
     public FailoverHttpClient() {
         manager = new MonitoredHttpConnectionManager();
         client = new HttpClient(manager);
@@ -42,6 +59,17 @@ public class FailoverHttpClient {
         client.setParams(new HttpClientParams());
         manager.getParams().setStaleCheckingEnabled(false);
     }
+
+    /**
+     * Create a client whose pool is registered in the PoolsRegistry under this name,
+     * so that it is exported in the metrics. It is unregistered by shutdown()
+     * @throws IllegalArgumentException if another pool is already registered under this name
+     */
+    public FailoverHttpClient(String poolName) {
+        this();
+        this.poolName = poolName;
+        PoolsRegistry.addPool(poolName, manager);
+    }
  
      public void setCredentials(String login, String password) {
         manager.setCredentials(new UsernamePasswordCredentials(login, password));
@@ -86,34 +114,135 @@ public class FailoverHttpClient {
         manager.isAliveTimeout = timeout;
     }
     
+    /**
+     * Set the policy used to choose the host of each request.
+     * Default is a weighted round-robin.
+     * @see LeastInFlightPolicy
+     * @see PowerOfTwoChoicesPolicy
+     * @see LatencyAwarePolicy
+     */
+    public void setHostSelectionPolicy(HostSelectionPolicy policy) {
+        manager.setSelectionPolicy(policy);
+    }
+
+    /**
+     * Set the time after which an unused pooled connection is closed by the monitoring
+     * @param time time in milliseconds, 0 to keep idle connections forever
+     */
+    public void setMaxConnectionIdleTime(long time) {
+        manager.maxConnectionIdleTime = time;
+    }
+
+    /**
+     * Set the number of connections that the monitoring keeps opened and checked in advance
+     * for each alive host, so that a new or recovering host serves its first requests
+     * without connecting. Requires the monitoring to be started.
+     */
+    public void setMinIdleConnectionsPerHost(int count) {
+        manager.minIdleConnectionsPerHost = count;
+    }
+
     public MonitoredHttpConnectionManager getConnectionManager() {
         return manager;
     }
 
-//    /** Maximum time to wait for a connection to become available
-//     * (if all hosts are not down and max number of connections
-//     * is exceeded)
-//     */
-//    public void setConnectionAcquireTimeout(long timeout) {
-//        client.getParams().setConnectionManagerTimeout(timeout);
-//    }
+    /** Maximum time to wait for a connection to become available
+     * (if all hosts are not down and max number of connections
+     * is exceeded)
+     */
+    public void setConnectionAcquireTimeout(long timeout) {
+        client.getParams().setConnectionManagerTimeout(timeout);
+    }
+
+    /**
+     * Set the maximum total number of connections of the pool.
+     * Not limited by default.
+     */
+    public void setMaxTotalConnections(int max) {
+        manager.getParams().setMaxTotalConnections(max);
+    }
+
+    /**
+     * Set the maximum number of connections to each host of the pool.
+     * When a host reaches it, connections are acquired on other hosts.
+     * Not limited by default.
+     */
+    public void setMaxConnectionsPerHost(int max) {
+        manager.getParams().setDefaultMaxConnectionsPerHost(max);
+    }
     
+    /**
+     * Set the default delay between two checks of each host
+     * @param interval delay in milliseconds
+     */
+    public void setCheckInterval(long interval) {
+        manager.checkInterval = interval;
+    }
+
+    /**
+     * Set the maximum delay between two checks of a host that stays down.
+     * The delay doubles at each failed check, starting from the check interval.
+     * @param backoff delay in milliseconds
+     */
+    public void setMaxCheckBackoff(long backoff) {
+        manager.maxCheckBackoff = backoff;
+    }
+
+    /**
+     * Set the delay between two checks of a specific host
+     * @param interval delay in milliseconds, 0 to use the default
+     */
+    public void setHostCheckInterval(String host, int port, long interval) {
+        manager.setHostCheckInterval(host, port, interval);
+    }
+
+    /**
+     * Start monitoring the hosts.
+     * @param nthreads maximum number of hosts checked concurrently
+     */
     public void startMonitoring(int nthreads) {
-        int delay = 1000 / manager.hosts.size() * nthreads;
-        for (int i = 0; i < nthreads; i++) {
-            PoolMonitoringThread pmt = new PoolMonitoringThread();
-            pmt.loopDelay = delay;
-            pmt.pool = manager;
-            pmt.start();
-            threads.add(pmt);
-        }
+        startMonitoring(nthreads, false);
+    }
+
+    /**
+     * Start monitoring the hosts.
+     * @param nthreads maximum number of hosts checked concurrently, when virtual threads are not used
+     * @param virtualThreads run each check in its own virtual thread (Java 21+): the checks
+     *        are not bounded, there is at most one lightweight prober per host. Falls back to
+     *        "nthreads" platform threads on older JVMs
+     */
+    public void startMonitoring(int nthreads, boolean virtualThreads) {
+        PoolMonitoringThread pmt = new PoolMonitoringThread();
+        pmt.nworkers = nthreads;
+        pmt.virtualThreads = virtualThreads;
+        pmt.pool = manager;
+        pmt.start();
+        threads.add(pmt);
     }
 
     public void shutdown() {
         for (PoolMonitoringThread pmt : threads) {
-            try { pmt.join();} catch (InterruptedException e) {}
+            pmt.shutdownMonitoring();
+        }
+        List<Runnable> pending = null;
+        executorsLock.lock();
+        try {
+            shutdown = true;
+            if (hedgeExecutor != null) hedgeExecutor.shutdownNow();
+            if (asyncExecutor != null) pending = asyncExecutor.shutdownNow();
+        } finally {
+            executorsLock.unlock();
+        }
+        /* Nobody will execute the queued asynchronous requests: fail their futures */
+        if (pending != null) {
+            for (Runnable r : pending) {
+                ((AsyncRequest) r).completeExceptionally(new IOException("The client has been shut down"));
+            }
         }
         manager.shutdown();
+        if (poolName != null) {
+            PoolsRegistry.removePool(poolName, manager);
+        }
     }
 
     public void addHost(URI uri, int power) {
@@ -132,11 +261,60 @@ public class FailoverHttpClient {
         return executeMethod(method, timeout, 1);
     }
 
+    /**
+     * Execute the method, retrying up to "retries" times in total on failure.
+     * Each retry goes to a host that was not tried yet for this request (if there is one alive),
+     * and retries are limited by the retry budget of the pool.
+     */
     public int executeMethod(HttpMethod method, int timeout, int retries) throws HttpException, IOException {
+        manager.retryBudget.deposit();
+        return execute(method, timeout, retries, new RequestContext());
+    }
+
+    /**
+     * Enable the circuit breakers of the hosts: a host that fails too many real requests
+     * (IO errors or HTTP 5xx) is taken out of the rotation for some time, even if it answers
+     * isAlive. Requires the monitoring to be started.
+     * @param failureRate rate of failed requests in a 10 seconds window that opens the breaker
+     * @param minimumRequests minimum number of requests in the window to open the breaker
+     * @param openTime time before the host is tried again, in ms
+     */
+    public void setCircuitBreaker(double failureRate, int minimumRequests, long openTime) {
+        manager.breakerConfig.failureRateThreshold = failureRate;
+        manager.breakerConfig.minimumRequests = minimumRequests;
+        manager.breakerConfig.openTime = openTime;
+        manager.breakerConfig.enabled = true;
+    }
+
+    /**
+     * Also open the circuit breakers on latency
+     * @param slowRequestTime requests longer than this (in ms) are slow
+     * @param slowRate rate of slow requests in the window that opens the breaker
+     */
+    public void setCircuitBreakerSlowRequests(long slowRequestTime, double slowRate) {
+        manager.breakerConfig.slowRequestTime = slowRequestTime;
+        manager.breakerConfig.slowRateThreshold = slowRate;
+    }
+
+    /**
+     * Set the maximum number of retries, as a fraction of the requests (default 10%).
+     * When the budget is exhausted (for example during an outage), failed requests are not retried,
+     * so that the retries don't multiply the load of the cluster.
+     */
+    public void setRetryBudgetRatio(double ratio) {
+        manager.retryBudget.setRatio(ratio);
+    }
+
+    private void checkHosts() throws HttpException {
     	if (manager.hosts.size() == 0) {
     		logger.error("Could not execute method without any host.");
     		throw new HttpException("Trying to execute methods without host");
     	}
+    }
+
+    /** Execute the method with a request context attached to the current thread */
+    private int execute(HttpMethod method, int timeout, int retries, RequestContext ctx) throws HttpException, IOException {
+        checkHosts();
         // Fake config, the underlying manager manages all
         HostConfiguration config = new HostConfiguration();
 
@@ -151,18 +329,430 @@ public class FailoverHttpClient {
             client.getState().setCredentials(new AuthScope(AuthScope.ANY), manager.getCredentials());
         }
 
-        IOException fail = null;
-        for (int i = 1; i <= retries; ++i) {
-        	try {
-        		return client.executeMethod(config, method);
-        	} catch (IOException e) {
-        		logger.warn("Failed to execute method - try " + i + "/" + retries);
-        		fail = e;
-        		continue;
-        	}
+        manager.setRequestContext(ctx);
+        try {
+            IOException fail = null;
+            for (int i = 1; i <= retries; ++i) {
+                if (i > 1) {
+                    if (!manager.retryBudget.tryWithdraw()) {
+                        logger.warn("Retry budget exhausted, not retrying");
+                        manager.metrics.retriesDenied.increment();
+                        break;
+                    }
+                    manager.metrics.retries.increment();
+                }
+                ctx.lastHost = null;
+                long start = System.currentTimeMillis();
+                try {
+                    int status = client.executeMethod(config, method);
+                    long latency = System.currentTimeMillis() - start;
+                    manager.requestLatency.record(latency);
+                    if (ctx.lastHost != null) {
+                        manager.recordOutcome(ctx.lastHost, status >= 500, latency);
+                    }
+                    return status;
+                } catch (IOException e) {
+                    logger.warn("Failed to execute method - try " + i + "/" + retries);
+                    fail = e;
+                    /* Don't retry on the same host */
+                    HostState failed = ctx.lastHost;
+                    if (failed != null) {
+                        ctx.excludedHosts.add(failed);
+                        if (ctx.cancelled) {
+                            manager.cancelOutcome(failed);
+                        } else {
+                            manager.recordOutcome(failed, true, System.currentTimeMillis() - start);
+                            /* HttpClient has already released the connection, tell the pool what happened */
+                            manager.hostFailure(failed, e instanceof InterruptedIOException ?
+                                    MonitoredHttpConnectionManager.FailureType.TIMEOUT :
+                                    MonitoredHttpConnectionManager.FailureType.FAILED);
+                        }
+                    }
+                    if (ctx.cancelled) {
+                        /* Aborted on purpose: executing it again would only waste a retry token */
+                        break;
+                    }
+                    continue;
+                } catch (RuntimeException e) {
+                    /* For example if the method was aborted while the connection was acquired.
+                     * Nothing was learned about the host, but give back the permission of its
+                     * circuit breaker: a half-open breaker would wait forever for the outcome */
+                    if (ctx.lastHost != null) {
+                        manager.cancelOutcome(ctx.lastHost);
+                    }
+                    throw e;
+                }
+            }
+            logger.warn("exception in executeMethod: " + fail.getMessage());
+            throw fail;
+        } finally {
+            manager.setRequestContext(null);
+        }
+    }
+
+    /* ***************** Hedged requests ******************* */
+
+    /** Don't hedge before this percentile of the latency of the pool is reached. 0 to always use hedgeDelay */
+    private volatile double hedgePercentile = 0.95;
+    /** Delay before hedging, when the latency percentile is not used or not known yet */
+    private volatile long hedgeDelay = 100;
+    /** Number of latency samples needed to use the latency percentile */
+    static final int HEDGE_MIN_SAMPLES = 100;
+    private ExecutorService hedgeExecutor;
+    /** Protects the creation and the shutdown of the hedge and asynchronous executors */
+    private final ReentrantLock executorsLock = new ReentrantLock();
+
+    /**
+     * Set the percentile of the latency of the pool after which a GET is hedged.
+     * @param percentile in ]0, 1[, or 0 to always use the fixed hedge delay
+     */
+    public void setHedgePercentile(double percentile) {
+        this.hedgePercentile = percentile;
+    }
+
+    /** 
+     * Set the delay after which a GET is hedged, used until the pool has enough latency
+     * samples, or always if the hedge percentile is 0
+     */
+    public void setHedgeDelay(long delay) {
+        this.hedgeDelay = delay;
+    }
+
+    /** Set the maximum fraction of the requests that can be hedged (default 5%) */
+    public void setMaxHedgedFraction(double fraction) {
+        manager.hedgeBudget.setRatio(fraction);
+    }
+
+    long getHedgeDelay() {
+        double percentile = hedgePercentile;
+        if (percentile > 0 && manager.requestLatency.getCount() >= HEDGE_MIN_SAMPLES) {
+            return Math.max(1, manager.requestLatency.getPercentile(percentile));
+        }
+        return hedgeDelay;
+    }
+
+    private ExecutorService getHedgeExecutor() {
+        executorsLock.lock();
+        try {
+            if (hedgeExecutor == null) {
+                hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HedgedRequest-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return hedgeExecutor;
+        } finally {
+            executorsLock.unlock();
+        }
+    }
+
+    /** One of the copies of a hedged request, executed by the hedge executor */
+    private class HedgedAttempt implements Runnable {
+        final GetMethod method;
+        final int timeout;
+        final RequestContext ctx = new RequestContext();
+        final BlockingQueue<HedgedAttempt> done;
+        /** Shared by the attempts of a request: decides which one wins */
+        final ReentrantLock lock;
+        /* Set when the other attempt has won: we must release our connection ourselves */
+        boolean lost;
+        IOException error;
+
+        HedgedAttempt(GetMethod method, int timeout, BlockingQueue<HedgedAttempt> done, ReentrantLock lock) {
+            this.method = method;
+            this.timeout = timeout;
+            this.done = done;
+            this.lock = lock;
+        }
+
+        public void run() {
+            try {
+                execute(method, timeout, 1, ctx);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                /* For example if the method was aborted before it started */
+                error = new IOException(e.toString());
+            } finally {
+                /* Only decide under the lock: releasing the connection may do I/O */
+                boolean release;
+                lock.lock();
+                try {
+                    release = lost;
+                    if (!lost) {
+                        done.add(this);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (release) {
+                    method.releaseConnection();
+                }
+            }
+        }
+
+        /** The other attempt has won: abort this one, and release it if it is already finished */
+        void cancel() {
+            ctx.cancelled = true;
+            boolean finished;
+            lock.lock();
+            try {
+                lost = true;
+                finished = done.remove(this);
+            } finally {
+                lock.unlock();
+            }
+            if (finished) {
+                method.releaseConnection();
+            } else {
+                method.abort();
+            }
+        }
+    }
+
+    /** Copy a GET, before it is executed */
+    static GetMethod copyGetMethod(GetMethod method) {
+        GetMethod copy = new GetMethod();
+        copy.setPath(method.getPath());
+        copy.setQueryString(method.getQueryString());
+        copy.setFollowRedirects(method.getFollowRedirects());
+        /* A real copy: with "new HttpMethodParams(params)", the parameters of the original
+         * would only be the defaults of the copy, and later changes would leak into it */
+        try {
+            copy.setParams((HttpMethodParams) method.getParams().clone());
+        } catch (CloneNotSupportedException e) {
+            throw new Error("Could not copy the method parameters", e);
+        }
+        for (Header h : method.getRequestHeaders()) {
+            copy.addRequestHeader(new Header(h.getName(), h.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Execute a GET, with tail latency protection: if it has not answered after the hedge
+     * delay (by default, the 95th percentile of the latency of the pool), a copy is sent to
+     * another host. The first successful response is used and the other request is aborted.
+     * The fraction of hedged requests is limited (see setMaxHedgedFraction).
+     * 
+     * This is not an option of executeMethod: the response may come from the copy, and
+     * HttpClient can't move it into the original method, so the caller must use the returned one.
+     * 
+     * @return the method that won, either "method" or its copy. The response must be read from
+     *         it, and it must be released by the caller
+     */
+    public HttpMethod executeHedged(GetMethod method, int timeout) throws HttpException, IOException {
+        checkHosts();
+        manager.hedgeBudget.deposit();
+        BlockingQueue<HedgedAttempt> done = new LinkedBlockingQueue<HedgedAttempt>();
+        /* Copy now, before the first attempt modifies the request headers */
+        GetMethod copy = copyGetMethod(method);
+
+        ReentrantLock lock = new ReentrantLock();
+        HedgedAttempt first = new HedgedAttempt(method, timeout, done, lock);
+        HedgedAttempt second = null;
+        getHedgeExecutor().execute(first);
+        try {
+            HedgedAttempt finished = done.poll(getHedgeDelay(), TimeUnit.MILLISECONDS);
+            if (finished == null) {
+                if (manager.hedgeBudget.tryWithdraw()) {
+                    second = new HedgedAttempt(copy, timeout, done, lock);
+                    HostState firstHost = first.ctx.lastHost;
+                    if (firstHost != null) {
+                        second.ctx.excludedHosts.add(firstHost);
+                    }
+                    if (logger.isDebugEnabled()) logger.debug("Hedging request " + method.getPath() + " (first on " + firstHost + ")");
+                    manager.metrics.hedgedRequests.increment();
+                    getHedgeExecutor().execute(second);
+                } else {
+                    logger.debug("Hedge budget exhausted, not hedging");
+                }
+                finished = done.take();
+            }
+            if (finished.error == null || second == null) {
+                if (second != null) {
+                    (finished == first ? second : first).cancel();
+                }
+                if (finished.error != null) throw finished.error;
+                return finished.method;
+            }
+            /* The first one to finish failed, so it's up to the other one */
+            HedgedAttempt last = done.take();
+            if (last.error != null) throw finished.error;
+            return last.method;
+        } catch (InterruptedException e) {
+            first.cancel();
+            if (second != null) second.cancel();
+            throw new InterruptedIOException("Interrupted while executing hedged request");
+        }
+    }
+
+    /* ***************** Asynchronous requests ******************* */
+
+    /** Number of threads of the asynchronous executor when the pool has no connection limit */
+    static final int DEFAULT_ASYNC_THREADS = 64;
+    /** Number of threads of the asynchronous executor, 0 to follow the connection limits */
+    private int asyncThreads;
+    /** Maximum number of asynchronous requests waiting for a thread */
+    private int maxQueuedAsyncRequests = 10000;
+    private ThreadPoolExecutor asyncExecutor;
+    /** Set by shutdown(): no more asynchronous requests are accepted */
+    private boolean shutdown;
+
+    /**
+     * Set the number of threads that execute the asynchronous requests.
+     * By default, it is the maximum total number of connections of the pool (or the sum of
+     * the maximum numbers of connections per host): more threads would only wait for a connection.
+     * Must be called before the first asynchronous request.
+     */
+    public void setAsyncThreads(int threads) {
+        executorsLock.lock();
+        try {
+            this.asyncThreads = threads;
+        } finally {
+            executorsLock.unlock();
+        }
+    }
+
+    /**
+     * Set the maximum number of asynchronous requests waiting for a thread. Above, the
+     * futures of the new requests fail right away.
+     * Must be called before the first asynchronous request.
+     */
+    public void setMaxQueuedAsyncRequests(int max) {
+        executorsLock.lock();
+        try {
+            this.maxQueuedAsyncRequests = max;
+        } finally {
+            executorsLock.unlock();
+        }
+    }
+
+    /** Number of threads of the asynchronous executor, following the connection limits */
+    int getAsyncThreads() {
+        if (asyncThreads > 0) return asyncThreads;
+        int max = manager.getMaxTotalConnections();
+        if (max > 0) return max;
+        int sum = 0;
+        for (HostState host : manager.hosts) {
+            int hostMax = manager.getMaxConnectionsPerHost(host);
+            if (hostMax <= 0) return DEFAULT_ASYNC_THREADS;
+            sum += hostMax;
+        }
+        return sum > 0 ? sum : DEFAULT_ASYNC_THREADS;
+    }
+
+    /** Get the asynchronous executor, created on first use. Returns null after shutdown() */
+    private ThreadPoolExecutor getAsyncExecutor() {
+        executorsLock.lock();
+        try {
+            if (shutdown) return null;
+            if (asyncExecutor == null) {
+                int threads = getAsyncThreads();
+                asyncExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(maxQueuedAsyncRequests), new ThreadFactory() {
+                    final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "AsyncRequest-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                asyncExecutor.allowCoreThreadTimeOut(true);
+            }
+            return asyncExecutor;
+        } finally {
+            executorsLock.unlock();
+        }
+    }
+
+    /**
+     * An asynchronous request. Cancelling it aborts the method, and the connection
+     * goes back to the pool without counting as a failure of the host.
+     */
+    private class AsyncRequest extends CompletableFuture<Integer> implements Runnable {
+        final HttpMethod method;
+        final int timeout;
+        final int retries;
+        final RequestContext ctx = new RequestContext();
+        volatile boolean started;
+
+        AsyncRequest(HttpMethod method, int timeout, int retries) {
+            this.method = method;
+            this.timeout = timeout;
+            this.retries = retries;
+        }
+
+        public void run() {
+            if (isDone()) return;
+            started = true;
+            try {
+                manager.retryBudget.deposit();
+                int status = execute(method, timeout, retries, ctx);
+                if (!complete(status)) {
+                    /* Cancelled meanwhile: nobody will read the response */
+                    method.releaseConnection();
+                }
+            } catch (Throwable e) {
+                /* For example if the method was aborted before it started */
+                if (!completeExceptionally(e)) {
+                    method.releaseConnection();
+                }
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            ctx.cancelled = true;
+            if (!super.cancel(mayInterruptIfRunning)) return false;
+            if (started) {
+                method.abort();
+            } else {
+                /* Free its place in the queue */
+                executorsLock.lock();
+                try {
+                    if (asyncExecutor != null) asyncExecutor.remove(this);
+                } finally {
+                    executorsLock.unlock();
+                }
+            }
+            return true;
+        }
+    }
+
+    /** @see #executeMethodAsync(HttpMethod, int, int) */
+    public CompletableFuture<Integer> executeMethodAsync(HttpMethod method, int timeout) {
+        return executeMethodAsync(method, timeout, 1);
+    }
+
+    /**
+     * Execute the method in the asynchronous executor of the client, with the same failover
+     * and retries as executeMethod. The future gives the HTTP status: then the response must be
+     * read from the method, and the method must be released by the caller. Do it in a callback
+     * of the future (for example whenComplete): the connection is held until then, and waiting
+     * for the futures one by one could exhaust the pool.
+     * Cancelling the future aborts the method and releases its connection.
+     * The future fails with an IOException if the method fails, if there are too many
+     * pending asynchronous requests, or if the client is shut down (then the pending requests
+     * fail too).
+     */
+    public CompletableFuture<Integer> executeMethodAsync(HttpMethod method, int timeout, int retries) {
+        AsyncRequest request = new AsyncRequest(method, timeout, retries);
+        ThreadPoolExecutor executor = getAsyncExecutor();
+        if (executor == null) {
+            request.completeExceptionally(new IOException("The client has been shut down"));
+            return request;
+        }
+        try {
+            executor.execute(request);
+        } catch (RejectedExecutionException e) {
+            request.completeExceptionally(new IOException(executor.isShutdown() ?
+                    "The client has been shut down" : "Too many pending asynchronous requests"));
         }
-        logger.warn("exception in executeMethod: " + fail.getMessage());
-        throw fail;
+        return request;
     }
 
     private static Logger logger = Logger.getLogger("httpclient.failover");
@@ -0,0 +1,124 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+
+package com.exalead.io.failover;
+
+import java.util.Arrays;
+
+/**
+ * Priority queue of the hosts waiting for their next check, ordered by nextCheckTime.
+ * This is a binary heap indexed through HostState.checkQueueIndex, so that a host can
+ * be removed or rescheduled in O(log n) without searching it. Hosts with the same
+ * deadline are served in insertion order.
+ * 
+ * Not thread-safe: guarded by the monitoring lock of the pool.
+ */
+class HostCheckQueue {
+    private HostState[] heap = new HostState[16];
+    private int size;
+    private long sequence;
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(HostState hs) {
+        return hs.checkQueueIndex >= 0;
+    }
+
+    /** The host with the nearest deadline, or null if the queue is empty */
+    HostState peek() {
+        return size == 0 ? null : heap[0];
+    }
+
+    void add(HostState hs) {
+        if (contains(hs)) {
+            throw new IllegalStateException("Host already queued: " + hs);
+        }
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        hs.checkQueueSequence = sequence++;
+        heap[size] = hs;
+        hs.checkQueueIndex = size;
+        size++;
+        siftUp(size - 1);
+    }
+
+    void remove(HostState hs) {
+        if (contains(hs)) {
+            removeAt(hs.checkQueueIndex);
+        }
+    }
+
+    /** Change the deadline of a host, queued or not */
+    void reschedule(HostState hs, long nextCheckTime) {
+        hs.nextCheckTime = nextCheckTime;
+        if (contains(hs)) {
+            int i = hs.checkQueueIndex;
+            siftUp(i);
+            siftDown(hs.checkQueueIndex);
+        }
+    }
+
+    private void removeAt(int i) {
+        HostState removed = heap[i];
+        size--;
+        if (i != size) {
+            heap[i] = heap[size];
+            heap[i].checkQueueIndex = i;
+            heap[size] = null;
+            siftUp(i);
+            siftDown(heap[i].checkQueueIndex);
+        } else {
+            heap[size] = null;
+        }
+        removed.checkQueueIndex = -1;
+    }
+
+    private static boolean before(HostState a, HostState b) {
+        if (a.nextCheckTime != b.nextCheckTime) {
+            return a.nextCheckTime < b.nextCheckTime;
+        }
+        return a.checkQueueSequence < b.checkQueueSequence;
+    }
+
+    private void siftUp(int i) {
+        HostState hs = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(hs, heap[parent])) break;
+            heap[i] = heap[parent];
+            heap[i].checkQueueIndex = i;
+            i = parent;
+        }
+        heap[i] = hs;
+        hs.checkQueueIndex = i;
+    }
+
+    private void siftDown(int i) {
+        HostState hs = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && before(heap[child + 1], heap[child])) child++;
+            if (!before(heap[child], hs)) break;
+            heap[i] = heap[child];
+            heap[i].checkQueueIndex = i;
+            i = child;
+        }
+        heap[i] = hs;
+        hs.checkQueueIndex = i;
+    }
+}
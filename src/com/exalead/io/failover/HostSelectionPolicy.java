@@ -0,0 +1,29 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+
+package com.exalead.io.failover;
+
+/**
+ * Chooses the host on which the next connection of a pool is acquired.
+ * Implementations are called concurrently by all request threads, without any lock,
+ * so they must be thread-safe and should not block.
+ */
+public interface HostSelectionPolicy {
+    /**
+     * Select a host amongst the alive ones.
+     * @param alive the current alive hosts of the pool, never empty
+     * @return the selected host, must be one of the alive hosts
+     */
+    HostState select(AliveHosts alive);
+}
@@ -15,10 +15,12 @@
 package com.exalead.io.failover;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.ListIterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpConnection;
@@ -26,10 +28,18 @@ import org.apache.log4j.Logger;
 
 import com.exalead.io.failover.MonitoredConnection;
 
-/** The state and connections of a host in a failover pool */
+/**
+ * The state and connections of a host in a failover pool.
+ * The free connections list and the counters must only be modified while holding
+ * "lock". "down" and "usedConnections" are volatile so that they can be read without the lock.
+ * The lock is never held during I/O (connect, check, close): connections are taken out
+ * of the structures with the lock, and used or closed after it is released.
+ */
 public class HostState {
+    /** Protects the free connections and the counters. Never held during I/O */
+    final ReentrantLock lock = new ReentrantLock();
     int power;
-    boolean down;
+    volatile boolean down;
 
     /* Array that keeps, for the "usedConnectionsTS" past iterations
      * of the monitoring loop, the number of used connections at that 
@@ -43,12 +53,135 @@ public class HostState {
     int usedConnectionsInPastIdx;
     
     HostConfiguration configuration;
-    LinkedList<MonitoredConnection> freeConnections = new LinkedList<MonitoredConnection>();
-    int usedConnections;
+
+    /* Monitoring state. Guarded by the monitoring lock of the pool */
+    /** Delay between two checks of this host, 0 to use the default of the pool */
+    long checkInterval;
+    /** Date before which this host must not be checked */
+    long nextCheckTime;
+    /** Date of the end of the last check */
+    long lastCheckTime;
+    boolean checkInProgress;
+    /** Set when an immediate check is requested while a check is in progress */
+    boolean recheckRequested;
+    /** Set while the host waits in the immediate checks queue */
+    boolean urgentCheck;
+    /** Number of consecutive checks that found the host down */
+    int failedChecks;
+    /** Position in the check queue of the pool, -1 if not queued */
+    int checkQueueIndex = -1;
+    /** Insertion order in the check queue, to serve equal deadlines in FIFO order */
+    long checkQueueSequence;
+    /** Set when the host is removed from its pool. Written with the monitoring lock, read anywhere */
+    volatile boolean removed;
+    /** Set when the pool is shut down: no connection may go back to the free list */
+    volatile boolean closed;
+    volatile int usedConnections;
+    /** Circuit breaker fed by the outcomes of the requests. Set when the host is added to a pool */
+    CircuitBreaker breaker;
+
+    /* Weight of a new sample in the latency moving average */
+    static final double LATENCY_EWMA_ALPHA = 0.3;
+    /* Exponentially weighted moving average of the durations of the requests, in milliseconds.
+     * Updated with the lock, read without it.
+     */
+    volatile double latencyEwma;
+    /* Time of the last latency sample, 0 if none */
+    volatile long latencyUpdateTime;
+
+    public int getPower() {
+        return power;
+    }
+
+    public boolean isDown() {
+        return down;
+    }
+
+    public CircuitBreaker.State getCircuitBreakerState() {
+        return breaker.getState();
+    }
+
+    /** Get the number of connections currently used by clients. Does not require the lock */
+    public int getUsedConnections() {
+        return usedConnections;
+    }
+
+    /** Add a request duration to the latency moving average. Must be called with the lock */
+    void recordLatency(long latency, long now) {
+        if (latencyUpdateTime == 0) {
+            latencyEwma = latency;
+        } else {
+            latencyEwma += LATENCY_EWMA_ALPHA * (latency - latencyEwma);
+        }
+        latencyUpdateTime = now;
+    }
+
+    /** 
+     * Get the moving average of the durations of the requests on this host, in milliseconds,
+     * 0 if it was never measured. Does not require the lock
+     */
+    public double getLatencyEstimate() {
+        return latencyEwma;
+    }
+
+    /** Get the time of the last latency sample, 0 if it was never measured */
+    public long getLatencyUpdateTime() {
+        return latencyUpdateTime;
+    }
+
+    /** Get the number of free connections */
+    int getFreeConnectionsCount() {
+        lock.lock();
+        try {
+            return freeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* ******************* Free connections list ***************** */
+
+    /* The free connections are kept in an intrusive doubly-linked list (see MonitoredConnection),
+     * ordered by lastMonitoringTime: the head is the least recently checked connection, the
+     * tail the most recently checked one. All operations are O(1) (except insertion of
+     * connections checked earlier than the tail, which is rare) and allocate nothing.
+     * The free connections are also indexed by lastUseTime in the idle wheel.
+     * All these methods must be called with the lock, unless stated otherwise.
+     */
+    MonitoredConnection freeHead;
+    MonitoredConnection freeTail;
+    int freeCount;
+    IdleConnectionWheel idleWheel = new IdleConnectionWheel();
 
     /** Remove a connection from the free list */
     void removeFreeConnection(MonitoredConnection c) {
-        freeConnections.remove(c);
+        if (!c.inFreeList) return;
+        removeFromFreeList(c);
+        idleWheel.remove(c);
+    }
+
+    private void removeFromFreeList(MonitoredConnection c) {
+        if (c.prevFree != null) c.prevFree.nextFree = c.nextFree; else freeHead = c.nextFree;
+        if (c.nextFree != null) c.nextFree.prevFree = c.prevFree; else freeTail = c.prevFree;
+        c.prevFree = null;
+        c.nextFree = null;
+        c.inFreeList = false;
+        freeCount--;
+    }
+
+    /** Add a connection to the free list, at its place according to lastMonitoringTime */
+    void addFreeConnection(MonitoredConnection mc) {
+        MonitoredConnection after = freeTail;
+        while (after != null && after.lastMonitoringTime > mc.lastMonitoringTime) {
+            after = after.prevFree;
+        }
+        mc.prevFree = after;
+        mc.nextFree = (after == null) ? freeHead : after.nextFree;
+        if (mc.prevFree != null) mc.prevFree.nextFree = mc; else freeHead = mc;
+        if (mc.nextFree != null) mc.nextFree.prevFree = mc; else freeTail = mc;
+        mc.inFreeList = true;
+        freeCount++;
+        idleWheel.add(mc);
     }
     
     public String getURI() {
@@ -56,34 +189,30 @@ public class HostState {
     }
     
     public String toString() {
-        return "[HS: " + getURI() + ",down=" + down + ",fc=" + freeConnections.size() + ",ac=" + usedConnections +"]";
+        return "[HS: " + getURI() + ",down=" + down + ",fc=" + freeCount + ",ac=" + usedConnections +"]";
     }
 
-    /** Get the connections that were checked after "minDate" */
-    List<MonitoredConnection> getRecentlyCheckedConnections(long minDate) {
-        List<MonitoredConnection> ret = new ArrayList<MonitoredConnection>();
-        for (MonitoredConnection free: freeConnections) {
-            if (free.lastMonitoringTime >= minDate) {
-                ret.add(free);
-            }
+    /** 
+     * Remove and return the most recently checked connection, if it was checked after "minDate".
+     * Returns null if there is no such connection.
+     */
+    MonitoredConnection pollRecentlyCheckedConnection(long minDate) {
+        MonitoredConnection c = freeTail;
+        if (c == null || c.lastMonitoringTime < minDate) {
+            return null;
         }
-        return ret;
+        removeFreeConnection(c);
+        return c;
     }
 
     /**
-     * Return the connection that was checked least recently.
+     * Remove and return the connection that was checked least recently.
      * Returns null if there is no currently free connection.
-     * Note that this does not remove this connection from the freelist. You must
-     * call removeFreeConnection afterwards.
      */
-    MonitoredConnection getOldestCheckedConnection() {
-        MonitoredConnection c = null;
-        long oldestDate = Long.MAX_VALUE;
-        for (MonitoredConnection free: freeConnections) {
-            if (free.lastMonitoringTime <= oldestDate) {
-                oldestDate = free.lastMonitoringTime;
-                c = free;
-            }
+    MonitoredConnection pollOldestCheckedConnection() {
+        MonitoredConnection c = freeHead;
+        if (c != null) {
+            removeFreeConnection(c);
         }
         return c;
     }
@@ -91,27 +220,68 @@ public class HostState {
     MonitoredConnection connect(int timeout) throws IOException {
         MonitoredConnection newConn = new MonitoredConnection();
         newConn.host = this;
-        newConn.conn = new HttpConnection(configuration);
+        newConn.conn = new PooledHttpConnection(configuration, newConn);
         newConn.conn.getParams().setConnectionTimeout(timeout);
         newConn.conn.open();
         newConn.lastMonitoringTime = System.currentTimeMillis();
+        newConn.lastUseTime = newConn.lastMonitoringTime;
         return newConn;
     }
     
-    /* Close all connections to the host and remove them */
+    /** Remove all the free connections, and return them. Must be called with the lock */
+    MonitoredConnection[] detachFreeConnections() {
+        MonitoredConnection[] detached = new MonitoredConnection[freeCount];
+        int i = 0;
+        MonitoredConnection free;
+        while ((free = pollOldestCheckedConnection()) != null) {
+            detached[i++] = free;
+        }
+        return detached;
+    }
+
+    /** Close all free connections to the host and remove them. Must be called WITHOUT the lock */
     void killAllConnections() {
-        for (MonitoredConnection free: freeConnections) {
+        MonitoredConnection[] detached;
+        lock.lock();
+        try {
+            detached = detachFreeConnections();
+        } finally {
+            lock.unlock();
+        }
+        for (MonitoredConnection free : detached) {
             free.conn.close();
         }
-        freeConnections.clear();
     }
     
-    /* This operation can be a bit long: at most freeConnections.size() milliseconds */
-    void killStaleConnections() {
-        int closed = 0;
-        ListIterator<MonitoredConnection> it = freeConnections.listIterator();
-        while (it.hasNext()) {
-            MonitoredConnection free = it.next();
+    /* Above this number of free connections, the stale connections sweep is parallelized */
+    static final int PARALLEL_SWEEP_THRESHOLD = 16;
+    static final int MAX_SWEEP_THREADS = 4;
+    private static ExecutorService sweepExecutor;
+    private static final ReentrantLock sweepExecutorLock = new ReentrantLock();
+
+    private static ExecutorService getSweepExecutor() {
+        sweepExecutorLock.lock();
+        try {
+            if (sweepExecutor == null) {
+                sweepExecutor = Executors.newFixedThreadPool(MAX_SWEEP_THREADS, new ThreadFactory() {
+                    final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "StaleConnectionsSweep-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return sweepExecutor;
+        } finally {
+            sweepExecutorLock.unlock();
+        }
+    }
+
+    /** Close the stale connections amongst connections[from..to[ and null them */
+    private static void sweep(MonitoredConnection[] connections, int from, int to) {
+        for (int i = from; i < to; i++) {
+            MonitoredConnection free = connections[i];
             boolean wasStale;
             try {
                 wasStale = free.conn.closeIfStale();
@@ -120,21 +290,138 @@ public class HostState {
                 free.conn.close();
             }
             if (wasStale) {
-                closed++;
-                it.remove();
+                connections[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Close the free connections that are stale (closed by the remote host).
+     * This operation can be a bit long (at most 1 millisecond per free connection), so it
+     * MUST be called WITHOUT the lock: the free list is detached, swept (in parallel if
+     * large), and the survivors are merged back.
+     * Acquires that happen meanwhile don't see the detached connections. If the host went down,
+     * was removed or the pool was shut down meanwhile, the survivors are closed instead.
+     */
+    void killStaleConnections() {
+        MonitoredConnection[] detached;
+        lock.lock();
+        try {
+            detached = detachFreeConnections();
+        } finally {
+            lock.unlock();
+        }
+
+        if (detached.length < PARALLEL_SWEEP_THRESHOLD) {
+            sweep(detached, 0, detached.length);
+        } else {
+            final MonitoredConnection[] all = detached;
+            int nchunks = Math.min(MAX_SWEEP_THREADS, detached.length / PARALLEL_SWEEP_THRESHOLD);
+            int chunkSize = (detached.length + nchunks - 1) / nchunks;
+            final CountDownLatch done = new CountDownLatch(nchunks - 1);
+            /* The current thread sweeps the first chunk itself */
+            for (int c = 1; c < nchunks; c++) {
+                final int from = c * chunkSize;
+                final int to = Math.min(all.length, from + chunkSize);
+                getSweepExecutor().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            sweep(all, from, to);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            sweep(all, 0, chunkSize);
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                /* Should not happen, the other chunks are short. Wait for them anyway */
+                Thread.currentThread().interrupt();
+                while (done.getCount() > 0) {
+                    try { done.await(); } catch (InterruptedException e2) {}
+                }
+            }
+        }
+
+        int stale = 0;
+        boolean dead;
+        lock.lock();
+        try {
+            dead = down || removed || closed;
+            for (int i = 0; i < detached.length; i++) {
+                if (detached[i] == null) {
+                    stale++;
+                } else if (!dead) {
+                    addFreeConnection(detached[i]);
+                    detached[i] = null;
+                }
+            }
+            logger.info("Closed " + stale + " stale connections, " + freeCount + " remaining");
+        } finally {
+            lock.unlock();
+        }
+        if (dead) {
+            /* Nobody would close them anymore */
+            for (MonitoredConnection survivor : detached) {
+                if (survivor != null) survivor.conn.close();
             }
         }
-        logger.info("Closed " + closed + " stale connections, " + freeConnections.size() + " remaining");
     }
     
-    void markConnectionsAsUnchecked() {
-        for (MonitoredConnection free: freeConnections) {
-            free.lastMonitoringTime = 0;
+    /**
+     * Close the free connections that were not used since "cutoff", but keep at least "keep" free
+     * connections (the warm connections of the monitoring). Returns the number of closed connections.
+     * Must be called WITHOUT the lock: the connections are closed once they are out of the list.
+     */
+    int closeIdleConnections(long cutoff, int keep) {
+        MonitoredConnection expired = null;
+        lock.lock();
+        try {
+            MonitoredConnection idle = idleWheel.expire(cutoff);
+            int count = 0;
+            for (MonitoredConnection mc = idle; mc != null; mc = mc.nextIdle) {
+                count++;
+            }
+            int spared = Math.max(0, keep - (freeCount - count));
+            while (idle != null) {
+                MonitoredConnection next = idle.nextIdle;
+                if (spared > 0) {
+                    /* Back in the wheel: it will be considered again at the next expiration */
+                    spared--;
+                    idleWheel.add(idle);
+                } else {
+                    /* Already out of the wheel, only remove it from the list */
+                    removeFromFreeList(idle);
+                    idle.nextIdle = expired;
+                    expired = idle;
+                }
+                idle = next;
+            }
+        } finally {
+            lock.unlock();
+        }
+        int closed = 0;
+        MonitoredConnection idle = expired;
+        while (idle != null) {
+            MonitoredConnection next = idle.nextIdle;
+            idle.nextIdle = null;
+            idle.conn.close();
+            closed++;
+            idle = next;
+        }
+        if (closed > 0) {
+            logger.info("Closed " + closed + " idle connections");
         }
+        return closed;
     }
     
-    void addFreeConnection(MonitoredConnection mc) {
-        freeConnections.add(mc);
+    /* All connections get the same date, so this keeps the free list ordered */
+    void markConnectionsAsUnchecked() {
+        for (MonitoredConnection free = freeHead; free != null; free = free.nextFree) {
+            free.lastMonitoringTime = 0;
+        }
     }
 
     private static Logger logger = Logger.getLogger("httpclient.failover");
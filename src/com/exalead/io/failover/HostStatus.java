@@ -0,0 +1,76 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.beans.ConstructorProperties;
+
+/** Snapshot of the state of a host, for the JMX view of the pools */
+public class HostStatus {
+    private final String uri;
+    private final int power;
+    private final boolean down;
+    private final int freeConnections;
+    private final int usedConnections;
+    private final long lastCheckTime;
+    private final String circuitBreakerState;
+    private final double latencyEstimate;
+
+    @ConstructorProperties({"uri", "power", "down", "freeConnections", "usedConnections",
+        "lastCheckTime", "circuitBreakerState", "latencyEstimate"})
+    public HostStatus(String uri, int power, boolean down, int freeConnections, int usedConnections,
+            long lastCheckTime, String circuitBreakerState, double latencyEstimate) {
+        this.uri = uri;
+        this.power = power;
+        this.down = down;
+        this.freeConnections = freeConnections;
+        this.usedConnections = usedConnections;
+        this.lastCheckTime = lastCheckTime;
+        this.circuitBreakerState = circuitBreakerState;
+        this.latencyEstimate = latencyEstimate;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public int getPower() {
+        return power;
+    }
+
+    public boolean isDown() {
+        return down;
+    }
+
+    public int getFreeConnections() {
+        return freeConnections;
+    }
+
+    public int getUsedConnections() {
+        return usedConnections;
+    }
+
+    /** Date of the end of the last check by the monitoring, 0 if never checked */
+    public long getLastCheckTime() {
+        return lastCheckTime;
+    }
+
+    public String getCircuitBreakerState() {
+        return circuitBreakerState;
+    }
+
+    /** Moving average of the round-trip times, in milliseconds */
+    public double getLatencyEstimate() {
+        return latencyEstimate;
+    }
+}
@@ -50,6 +50,14 @@ class HttpConnectionAdapter extends HttpConnection {
         this.wrappedConnection = connection;
     }
 
+    /**
+     * Detach the connection, when it is released directly through the manager:
+     * the adapter can't be used anymore, even if its holder keeps a reference to it.
+     */
+    void detach() {
+        this.wrappedConnection = null;
+    }
+
     /**
      * Tests if the wrapped connection is still available.
      * @return boolean
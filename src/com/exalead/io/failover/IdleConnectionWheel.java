@@ -0,0 +1,94 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+
+package com.exalead.io.failover;
+
+/**
+ * Hashed timer wheel of the free connections of a host, keyed by their lastUseTime.
+ * 
+ * Each slot covers TICK milliseconds, and holds an intrusive doubly-linked list of the
+ * connections last used during one of these ticks (modulo the wheel size). Adding
+ * and removing a connection is O(1). Expiring the connections unused since a cutoff
+ * date only visits the slots between the previous cutoff and the new one, instead
+ * of scanning all free connections.
+ * Connections of a later round of the wheel share the slots: they are simply skipped
+ * when a slot is visited.
+ * 
+ * Not thread-safe: guarded by the lock of the owner HostState.
+ */
+class IdleConnectionWheel {
+    static final int SLOTS = 256;
+    static final long TICK = 250;
+
+    private final MonitoredConnection[] slots = new MonitoredConnection[SLOTS];
+    /* Tick of the last expiration cutoff, Long.MIN_VALUE if none */
+    private long cursorTick = Long.MIN_VALUE;
+
+    void add(MonitoredConnection mc) {
+        long tick = mc.lastUseTime / TICK;
+        /* A connection that is already behind the cursor (for example given back after a check
+         * or a stale sweep, with its old lastUseTime) goes in the slot of the cursor, which is
+         * visited again by the next expiration. Otherwise, it would wait for a full turn of the wheel */
+        if (cursorTick != Long.MIN_VALUE && tick < cursorTick) {
+            tick = cursorTick;
+        }
+        int slot = (int)(tick & (SLOTS - 1));
+        mc.idleSlot = slot;
+        mc.prevIdle = null;
+        mc.nextIdle = slots[slot];
+        if (mc.nextIdle != null) mc.nextIdle.prevIdle = mc;
+        slots[slot] = mc;
+    }
+
+    void remove(MonitoredConnection mc) {
+        if (mc.prevIdle != null) mc.prevIdle.nextIdle = mc.nextIdle; else slots[mc.idleSlot] = mc.nextIdle;
+        if (mc.nextIdle != null) mc.nextIdle.prevIdle = mc.prevIdle;
+        mc.prevIdle = null;
+        mc.nextIdle = null;
+    }
+
+    /**
+     * Remove from the wheel all connections whose lastUseTime is before "cutoff".
+     * @return the removed connections, chained by their nextIdle field
+     */
+    MonitoredConnection expire(long cutoff) {
+        long cutoffTick = cutoff / TICK;
+        if (cursorTick != Long.MIN_VALUE && cutoffTick < cursorTick) {
+            /* Everything that is older was already expired */
+            return null;
+        }
+        long firstTick = cursorTick;
+        if (firstTick == Long.MIN_VALUE || cutoffTick - firstTick >= SLOTS) {
+            firstTick = cutoffTick - SLOTS + 1;
+        }
+        /* The slot of the cutoff is only partially expired, so it will be visited again next time */
+        cursorTick = cutoffTick;
+
+        MonitoredConnection expired = null;
+        for (long tick = firstTick; tick <= cutoffTick; tick++) {
+            int slot = (int)(tick & (SLOTS - 1));
+            MonitoredConnection mc = slots[slot];
+            while (mc != null) {
+                MonitoredConnection next = mc.nextIdle;
+                if (mc.lastUseTime < cutoff) {
+                    remove(mc);
+                    mc.nextIdle = expired;
+                    expired = mc;
+                }
+                mc = next;
+            }
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,104 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+
+package com.exalead.io.failover;
+
+/**
+ * Selects hosts at random with a probability proportional to power / latency, where
+ * latency is the moving average of the durations of the requests on each host (the
+ * isAlive checks are not counted: they don't cost what a real request costs).
+ * 
+ * The latency of a host that was not measured for some time decays towards the mean
+ * latency of the alive hosts, so a host that was slow (and thus avoided) is regularly
+ * re-explored and can get its share back. Hosts that were not measured yet (new, or
+ * just back up) get the mean latency: they don't take a burst of traffic.
+ * O(n) per pick, without lock.
+ */
+public class LatencyAwarePolicy implements HostSelectionPolicy {
+    /* Latency added to all estimates, so that very fast hosts don't get an infinite weight */
+    static final double LATENCY_OFFSET = 1.0;
+
+    private final long decayTime;
+    private final SplitMix64 random = new SplitMix64();
+
+    /** Use a decay time of 10 seconds */
+    public LatencyAwarePolicy() {
+        this(10000);
+    }
+
+    /**
+     * @param decayTime time (in milliseconds) after which the latency estimate of
+     *        a host that was not measured is divided by e.
+     */
+    public LatencyAwarePolicy(long decayTime) {
+        if (decayTime <= 0) {
+            throw new IllegalArgumentException("Decay time must be positive");
+        }
+        this.decayTime = decayTime;
+    }
+
+    /** Mean of the latency estimates of the measured hosts, 0 if none was measured */
+    static double getMeanLatency(AliveHosts alive) {
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < alive.size(); i++) {
+            HostState hs = alive.get(i);
+            if (hs.latencyUpdateTime != 0) {
+                sum += hs.latencyEwma;
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /** 
+     * Latency estimate of a host, decayed towards the mean latency according to the age
+     * of its last sample. The mean latency if it was not measured yet
+     */
+    double getDecayedLatency(HostState hs, double mean, long now) {
+        long updated = hs.latencyUpdateTime;
+        if (updated == 0) return mean;
+        double latency = hs.latencyEwma;
+        long age = now - updated;
+        if (age > 0) {
+            latency = mean + (latency - mean) * Math.exp(-(double)age / decayTime);
+        }
+        return latency;
+    }
+
+    private double getWeight(HostState hs, double mean, long now) {
+        return hs.power / (getDecayedLatency(hs, mean, now) + LATENCY_OFFSET);
+    }
+
+    public HostState select(AliveHosts alive) {
+        int n = alive.size();
+        if (n == 1) return alive.get(0);
+
+        long now = System.currentTimeMillis();
+        double mean = getMeanLatency(alive);
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += getWeight(alive.get(i), mean, now);
+        }
+        /* Estimates can change concurrently between the passes, in which case we
+         * may end up on the last host. That's not a problem.
+         */
+        double target = random.nextDouble() * total;
+        for (int i = 0; i < n - 1; i++) {
+            target -= getWeight(alive.get(i), mean, now);
+            if (target < 0) return alive.get(i);
+        }
+        return alive.get(n - 1);
+    }
+}
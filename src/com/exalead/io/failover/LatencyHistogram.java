@@ -0,0 +1,126 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free histogram of latencies, in milliseconds, used to compute percentiles.
+ * 
+ * Buckets are logarithmic with 4 sub-buckets per power of two, so the relative error
+ * is at most 25%, over the range [0, 2^31[ ms in 120 buckets.
+ * To follow the changes of latency, the histogram only covers the current and the
+ * previous time windows. Recording is one atomic increment; the window is rotated
+ * under a lock once per window.
+ */
+public class LatencyHistogram {
+    static final int BUCKETS = 120;
+
+    private static class Window {
+        final long start;
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        Window(long start) {
+            this.start = start;
+        }
+    }
+
+    private final long windowTime;
+    private volatile Window current;
+    private volatile Window previous;
+    /** Serializes the rotations of the windows */
+    private final ReentrantLock rotateLock = new ReentrantLock();
+
+    /** @param windowTime duration of a window in milliseconds */
+    public LatencyHistogram(long windowTime) {
+        this.windowTime = windowTime;
+        long now = System.currentTimeMillis();
+        this.current = new Window(now);
+        this.previous = new Window(now);
+    }
+
+    static int bucketOf(long value) {
+        if (value < 4) return value < 0 ? 0 : (int)value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (msb - 2)) & 3;
+        return Math.min(BUCKETS - 1, 4 * (msb - 1) + sub);
+    }
+
+    /** Highest value of a bucket */
+    static long bucketMax(int bucket) {
+        if (bucket < 4) return bucket;
+        int msb = bucket / 4 + 1;
+        int sub = bucket % 4;
+        return ((4L + sub) << (msb - 2)) + (1L << (msb - 2)) - 1;
+    }
+
+    private Window currentWindow(long now) {
+        Window w = current;
+        if (now - w.start >= windowTime) {
+            rotateLock.lock();
+            try {
+                w = current;
+                if (now - w.start >= windowTime) {
+                    previous = w;
+                    w = new Window(now);
+                    current = w;
+                }
+            } finally {
+                rotateLock.unlock();
+            }
+        }
+        return w;
+    }
+
+    public void record(long latency) {
+        currentWindow(System.currentTimeMillis()).counts.incrementAndGet(bucketOf(latency));
+    }
+
+    /** Number of values in the current and previous windows */
+    public long getCount() {
+        Window cur = currentWindow(System.currentTimeMillis());
+        Window prev = previous;
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += cur.counts.get(i) + prev.counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the value under which the given fraction of the latencies of the current and
+     * previous windows are.
+     * @param percentile in [0, 1]
+     * @return the latency in ms, -1 if there is no value
+     */
+    public long getPercentile(double percentile) {
+        Window cur = currentWindow(System.currentTimeMillis());
+        Window prev = previous;
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = cur.counts.get(i) + prev.counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return -1;
+        long rank = (long)Math.ceil(percentile * total);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return bucketMax(i);
+        }
+        return bucketMax(BUCKETS - 1);
+    }
+}
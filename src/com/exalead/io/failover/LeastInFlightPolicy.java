@@ -0,0 +1,44 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+
+package com.exalead.io.failover;
+
+/**
+ * Selects the alive host with the least in-flight connections relative to its power.
+ * 
+ * The scan starts at the host given by a weighted round-robin, and only a strictly
+ * better host replaces it, so that when all hosts are equally loaded (for example
+ * when the pool is idle) this behaves as the weighted round-robin.
+ * O(n) per pick, without lock.
+ */
+public class LeastInFlightPolicy implements HostSelectionPolicy {
+    private final WeightedRoundRobinPolicy roundRobin = new WeightedRoundRobinPolicy();
+
+    public HostState select(AliveHosts alive) {
+        int n = alive.size();
+        int start = roundRobin.nextIndex(alive);
+        HostState best = alive.get(start);
+        int bestUsed = best.usedConnections;
+        for (int i = 1; i < n; i++) {
+            HostState hs = alive.get((start + i) % n);
+            int used = hs.usedConnections;
+            /* used / power < bestUsed / bestPower */
+            if ((long)used * best.power < (long)bestUsed * hs.power) {
+                best = hs;
+                bestUsed = used;
+            }
+        }
+        return best;
+    }
+}
@@ -16,9 +16,30 @@ package com.exalead.io.failover;
 
 import org.apache.commons.httpclient.HttpConnection;
 
+/**
+ * The state of a pooled connection. It lives as long as the physical connection,
+ * across all acquire/release cycles.
+ */
 public class MonitoredConnection {
     HostState host;
     HttpConnection conn;
     long lastMonitoringTime;
     long lastUseTime;
+
+    /* Is the connection currently used by a client. Guarded by the host lock */
+    boolean leased;
+    /* Acquisition time of the current lease */
+    long leaseStartTime;
+    /* Is the outcome of the current lease reported by the FailoverHttpClient, instead of the release */
+    boolean outcomeReported;
+
+    /* Links in the free list of the host. Guarded by the host lock */
+    MonitoredConnection prevFree;
+    MonitoredConnection nextFree;
+    boolean inFreeList;
+
+    /* Links in the idle wheel of the host. Guarded by the host lock */
+    MonitoredConnection prevIdle;
+    MonitoredConnection nextIdle;
+    int idleSlot;
 }
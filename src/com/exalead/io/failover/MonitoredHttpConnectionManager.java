@@ -15,24 +15,29 @@
 package com.exalead.io.failover;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.HostConfiguration;
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnection;
 import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.URI;
-import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.BasicScheme;
+import org.apache.commons.httpclient.cookie.CookiePolicy;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.log4j.Logger;
@@ -48,56 +53,39 @@ import org.apache.log4j.NDC;
 /**
  * Manages a set of HttpConnections with monitoring and failover.
  * All HostConfigurations contained in this connection manager are "equivalent" and form a pool
+ *
+ * Locking: the lock of each HostState protects its free connections and counters.
+ * The topology lock is only taken for host topology changes (addHost/removeHost),
+ * so that threads working on different hosts never contend.
+ * All locks are java.util.concurrent locks, and no lock is held during I/O (connect,
+ * check, close): blocked virtual threads don't pin their carrier thread, and a slow
+ * close never stalls the threads acquiring connections.
  */
 public class MonitoredHttpConnectionManager implements HttpConnectionManager {
     /* **************** Static helpers ******************** */
 
     private static final Logger logger = Logger.getLogger("httpclient.failover");
 
-    /**
-     * Gets the host configuration for a connection.
-     * @param conn the connection to get the configuration of
-     * @return a new HostConfiguration
-     */
-    static HostConfiguration rebuildConfigurationFromConnection(HttpConnection conn) {
-        HostConfiguration connectionConfiguration = new HostConfiguration();
-        connectionConfiguration.setHost(conn.getHost(), conn.getPort(), conn.getProtocol());
-        if (conn.getLocalAddress() != null) {
-            connectionConfiguration.setLocalAddress(conn.getLocalAddress());
-        }
-        if (conn.getProxyHost() != null) {
-            connectionConfiguration.setProxy(conn.getProxyHost(), conn.getProxyPort());
-        }
-        return connectionConfiguration;
-    }
-    
-    static void consumeLastResponse(HttpConnection conn) {
-        InputStream lastResponse = conn.getLastResponseInputStream();
-        if (lastResponse != null) {
-            conn.setLastResponseInputStream(null);
-            try {
-                lastResponse.close();
-            } catch (IOException ioe) {
-                conn.close();
-            }
-        }
-    }
-
     /* ***************** Configuration ******************* */
+    /* The volatile settings can be changed at runtime, through JMX (see PoolMonitor) */
 
     /** We synchronously check the connection if its check is more than this delay old */
-    public long maxCheckDelayWithoutSynchronousCheck = 1000;
+    public volatile long maxCheckDelayWithoutSynchronousCheck = 1000;
     /** Max time for connect() to succeed */
     public int connectionTimeout = 500;
     /** Max time for "isAlive" to answer before host is considered timeouted */
-    int isAliveTimeout = 500;
-    int applicativeTimeout = 5000;
+    volatile int isAliveTimeout = 500;
+    volatile int applicativeTimeout = 5000;
     /** Number of times we retry to acquire if all hosts are down at acquisition time */
     int failMaxTries = 2;
     /** Max time we wait if all hosts are down at acquisition time */
     long failTimeout = 200;
     /** Maximum number of pooled (idle) connections for each host */
-    int maxIdleConnectionsPerHost;
+    volatile int maxIdleConnectionsPerHost;
+    /** Number of free connections that the monitoring keeps opened and checked for each alive host */
+    int minIdleConnectionsPerHost;
+    /** Free connections unused for more than this time (in ms) are closed by the monitoring. 0 to disable */
+    long maxConnectionIdleTime;
     /** Should we perform auto scaling-down of idle connections */
     boolean autoScaleIdleConnections;
     /** Path on the server on which the "isAlive" service is mounted */
@@ -106,88 +94,137 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
     /** Collection of parameters associated with this connection manager. */
     private HttpConnectionManagerParams params = new HttpConnectionManagerParams(); 
 
+    /** Counters and histograms of this pool */
+    final PoolMetrics metrics = new PoolMetrics();
+
+    /** Enforces the maximum total number of connections */
+    private final ConnectionLimiter limiter = new ConnectionLimiter();
+
+    /** 
+     * Maximum total number of connections, 0 if unlimited.
+     * The limit only applies if it was explicitly set in the parameters: the default 
+     * of HttpConnectionManagerParams is much too low for a pool of several hosts.
+     */
+    int getMaxTotalConnections() {
+        if (params.getParameter(HttpConnectionManagerParams.MAX_TOTAL_CONNECTIONS) == null) {
+            return 0;
+        }
+        return params.getMaxTotalConnections();
+    }
+
+    /** Maximum number of connections for a host, 0 if unlimited. Same remark as above */
+    int getMaxConnectionsPerHost(HostState host) {
+        if (params.getParameter(HttpConnectionManagerParams.MAX_HOST_CONNECTIONS) == null) {
+            return 0;
+        }
+        return params.getMaxConnectionsPerHost(host.configuration);
+    }
+
     /* ***************** Global stuff ****************** */
 
     volatile boolean shutdown = false;
 
-    public synchronized void addHost(URI uri, int power) {
+    /** Serializes the host topology changes and the shutdown */
+    private final ReentrantLock topologyLock = new ReentrantLock();
+
+    public void addHost(URI uri, int power) {
         HostState hs = new HostState();
         hs.configuration = new HostConfiguration();
         hs.configuration.setHost(uri);
         
         hs.power = power;
         
-        if (hostsMap.containsKey(hs.configuration)) {
-            throw new IllegalArgumentException("Host: " + uri.toString() + " already exists");
+        topologyLock.lock();
+        try {
+            if (hostsMap.containsKey(hs.configuration)) {
+                throw new IllegalArgumentException("Host: " + uri.toString() + " already exists");
+            }
+            registerHost(hs);
+        } finally {
+            topologyLock.unlock();
         }
-
-        hosts.add(hs);
-        
-        for (int i = 0; i < power; i++) hostsForSelection.add(hs);
-        
-        hostsMap.put(hs.configuration, hs);
-        nextToMonitorList.add(hs);    	
     }
     
-    public synchronized void addHost(String host, int port, int power) {
+    public void addHost(String host, int port, int power) {
         HostState hs = new HostState();
         hs.configuration = new HostConfiguration();
         hs.configuration.setHost(host, port);
         
         hs.power = power;
         
-        if (hostsMap.containsKey(hs.configuration)) {
-            throw new IllegalArgumentException("Host: " + host + ":" + port + " already exists");
+        topologyLock.lock();
+        try {
+            if (hostsMap.containsKey(hs.configuration)) {
+                throw new IllegalArgumentException("Host: " + host + ":" + port + " already exists");
+            }
+            registerHost(hs);
+        } finally {
+            topologyLock.unlock();
         }
+    }
 
-        hosts.add(hs);
-        
-        for (int i = 0; i < power; i++) hostsForSelection.add(hs);
-        
+    /** Add a new host to all structures. Must be called with the topology lock */
+    private void registerHost(HostState hs) {
+        hs.breaker = new CircuitBreaker(breakerConfig);
         hostsMap.put(hs.configuration, hs);
-        nextToMonitorList.add(hs);
+        /* The monitoring lists must always be consistent with the hosts list */
+        monitoringLock.lock();
+        try {
+            hosts.add(hs);
+            /* Check it right now */
+            hs.nextCheckTime = 0;
+            checkQueue.add(hs);
+            monitoringChanged.signalAll();
+        } finally {
+            monitoringLock.unlock();
+        }
+        rebuildAliveHosts();
     }
     
-    public synchronized void removeHost(String host, int port) {
+    public void removeHost(String host, int port) {
         HostConfiguration hc = new HostConfiguration();
         hc.setHost(host, port);
         
-        if (hosts.size() == 1) {
-            throw new IllegalArgumentException("Can't remove last host of pool");
-        }
-        
-        hostsMap.remove(hc);
-
-        /* Clean-up the round robin structure */
-        Iterator<HostState> iter = hostsForSelection.listIterator();
-        while (iter.hasNext()) {
-            HostState hs = iter.next();
-            if (hs.configuration.equals(hc)) {
-                iter.remove();
+        HostState removed;
+        topologyLock.lock();
+        try {
+            if (hosts.size() == 1) {
+                throw new IllegalArgumentException("Can't remove last host of pool");
             }
-        }
-        currentHost = 0;
-        
-        /* Cleanup the monitoring structure and the main list */
-        
-        nextToMonitorList.clear();
-        alreadyMonitored.clear();
-        
-        iter = hosts.listIterator();
-        while (iter.hasNext()) {
-            HostState hs = iter.next();
-            if (hs.configuration.equals(hc)) {
-                iter.remove();
-            } else {
-               nextToMonitorList.add(hs);
+
+            removed = hostsMap.remove(hc);
+            if (removed == null) {
+                return;
             }
+
+            /* Cleanup the monitoring structure and the main list */
+            monitoringLock.lock();
+            try {
+                hosts.remove(removed);
+                /* If the host is being checked, it is simply not queued again at the end of the check */
+                removed.removed = true;
+                checkQueue.remove(removed);
+                if (removed.urgentCheck) {
+                    urgentToMonitor.remove(removed);
+                    removed.urgentCheck = false;
+                }
+            } finally {
+                monitoringLock.unlock();
+            }
+
+            /* Clean-up the round robin structure */
+            rebuildAliveHosts();
+        } finally {
+            topologyLock.unlock();
         }
+        /* The used connections are closed when they are released */
+        removed.killAllConnections();
     }
 
-    /** The list of all hosts in the pool */
-    List<HostState> hosts = new ArrayList<HostState>();
+    /** The list of all hosts in the pool. Copy-on-write: can be iterated without any lock */
+    List<HostState> hosts = new CopyOnWriteArrayList<HostState>();
     /** Fast access map by configuration */
-    Map<HostConfiguration, HostState> hostsMap = new HashMap<HostConfiguration, HostState>();
+    Map<HostConfiguration, HostState> hostsMap = new ConcurrentHashMap<HostConfiguration, HostState>();
 
     /**
      * Shuts down the connection manager and releases all resources.  All connections associated 
@@ -197,69 +234,205 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
      * 
      * <p>Calling this method more than once will have no effect.
      */
-    public synchronized void shutdown() {
-        if (shutdown) return;
-        
+    public void shutdown() {
+        topologyLock.lock();
+        try {
+            if (shutdown) return;
+            shutdown = true;
+        } finally {
+            topologyLock.unlock();
+        }
+
         for (HostState hs : hosts) {
-            for (MonitoredConnection mc : hs.freeConnections) {
-                mc.conn.close();
-            }
-            hs.freeConnections.clear();
+            hs.closed = true;
+            hs.killAllConnections();
         }
     }
 
-    /* *************************** Location helpers ************************* */
+    /* *************************** Hosts round-robin dispatch ************************* */
 
-    /** Find a Host given its configuration. Must be called with the lock */
-    private HostState getHostFromConfiguration(HostConfiguration config) {
-        HostState hs = hostsMap.get(config);
-        if (hs == null) {
-            throw new Error("Host: " + config +  " not found !");
+    /** Index of the alive hosts. Replaced on each change, can be read without lock */
+    private volatile AliveHosts aliveHosts = AliveHosts.EMPTY;
+    private final ReentrantLock aliveHostsLock = new ReentrantLock();
+    /** Policy used to select the host of the next connection */
+    private volatile HostSelectionPolicy selectionPolicy = new WeightedRoundRobinPolicy();
+
+    public void setSelectionPolicy(HostSelectionPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Selection policy may not be null");
         }
-        return hs;
+        this.selectionPolicy = policy;
     }
 
-    /* *************************** Hosts round-robin dispatch ************************* */
-
-    private List<HostState> hostsForSelection = new ArrayList<HostState>();
-    /** Index of the current host in the list */
-    private int currentHost;
+    public HostSelectionPolicy getSelectionPolicy() {
+        return selectionPolicy;
+    }
 
     /** 
-     * Get the host to use for next connection. 
-     * It performs round-robin amongst currently alive hosts, respecting the power property.
-     * This method must be called with the pool lock.
-     * TODO: Improve this method 
+     * Rebuild the alive hosts index. Must be called after each topology change
+     * or up/down transition. Can be called with a host lock held.
      */
-    private HostState getNextRoundRobinHost() throws IOException {
-        boolean alreadyReachedEnd = false;
-        while (true) {
-            currentHost++;
-            if (currentHost >= hostsForSelection.size()) {
-                if (alreadyReachedEnd) {
-                    currentHost = 0;
-                    /* Oops, all hosts are down ! */
-                    throw new IOException("All hosts are down");
+    private void rebuildAliveHosts() {
+        AliveHosts alive;
+        aliveHostsLock.lock();
+        try {
+            alive = AliveHosts.build(hosts);
+            aliveHosts = alive;
+        } finally {
+            aliveHostsLock.unlock();
+        }
+        if (!alive.isEmpty()) {
+            signalHostUp();
+        }
+        /* The threads waiting for saturated hosts may now use another host */
+        limiter.signalChange();
+    }
+
+    /** Incremented each time the set of alive hosts changes and is not empty */
+    private long hostUpCount;
+    private final ReentrantLock hostUpLock = new ReentrantLock();
+    private final Condition hostUp = hostUpLock.newCondition();
+
+    private void signalHostUp() {
+        hostUpLock.lock();
+        try {
+            hostUpCount++;
+            hostUp.signalAll();
+        } finally {
+            hostUpLock.unlock();
+        }
+    }
+
+    /** Get the number of "host up" signals so far, to be used with awaitHostUp */
+    private long getHostUpCount() {
+        hostUpLock.lock();
+        try {
+            return hostUpCount;
+        } finally {
+            hostUpLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until there are alive hosts again, or until the deadline.
+     * @param hostUpCount the value of getHostUpCount() before the caller noticed that all hosts were down,
+     *                    so that a host that comes back in between is not missed
+     */
+    private void awaitHostUp(long hostUpCount, long deadline) {
+        hostUpLock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            while (this.hostUpCount == hostUpCount && now < deadline) {
+                try {
+                    hostUp.await(deadline - now, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
-                currentHost = 0;
-                alreadyReachedEnd = true;
+                now = System.currentTimeMillis();
             }
-            if (!hostsForSelection.get(currentHost).down) {
-                break;
+        } finally {
+            hostUpLock.unlock();
+        }
+    }
+
+    /** 
+     * Mark a host as down or up, and update the selection structures accordingly.
+     * Can be called with or without the host lock
+     */
+    void setHostDown(HostState host, boolean down) {
+        host.lock.lock();
+        try {
+            if (host.down == down) return;
+            host.down = down;
+            if (down) {
+                metrics.hostDownTransitions.increment();
+            } else {
+                metrics.hostUpTransitions.increment();
+                /* The latency measured before it went down says nothing about the recovered host */
+                host.latencyEwma = 0;
+                host.latencyUpdateTime = 0;
             }
+            rebuildAliveHosts();
+        } finally {
+            host.lock.unlock();
+        }
+    }
+
+    /** 
+     * Get the host to use for next connection, amongst currently alive hosts, according
+     * to the selection policy.
+     * This method does not require any lock.
+     */
+    private HostState selectHost() throws IOException {
+        AliveHosts alive = aliveHosts;
+        if (alive.isEmpty()) {
+            /* Oops, all hosts are down ! */
+            throw new IOException("All hosts are down");
+        }
+        RequestContext ctx = requestContext.get();
+        if (ctx != null && !ctx.excludedHosts.isEmpty()) {
+            /* Avoid the hosts already used by this request, unless they are the only alive ones */
+            AliveHosts others = alive.without(ctx.excludedHosts);
+            if (!others.isEmpty()) alive = others;
         }
-        return hostsForSelection.get(currentHost);
+        return selectionPolicy.select(alive);
+    }
+
+    /* *************************** Requests ************************* */
+
+    /** Context of the request being executed by the current thread, if any */
+    private final ThreadLocal<RequestContext> requestContext = new ThreadLocal<RequestContext>();
+
+    /** Latencies of the successful requests executed on this pool */
+    final LatencyHistogram requestLatency = new LatencyHistogram(60000);
+    /** Limits the retries to a fraction of the requests executed on this pool */
+    final TokenBudget retryBudget = new TokenBudget(0.1, 10);
+    /** Limits the hedged requests to a fraction of the requests executed on this pool */
+    final TokenBudget hedgeBudget = new TokenBudget(0.05, 10);
+    /** Settings of the circuit breakers of the hosts */
+    final CircuitBreaker.Config breakerConfig = new CircuitBreaker.Config();
+
+    /** Record the outcome of a request on a host, and update the rotation if its circuit breaker changes */
+    void recordOutcome(HostState host, boolean failure, long latency) {
+        if (host.breaker.record(failure, latency, System.currentTimeMillis())) {
+            logger.warn("Circuit breaker of " + host + " is now " + host.breaker.getState());
+            rebuildAliveHosts();
+        }
+    }
+
+    /** The request was cancelled: it does not count for the circuit breaker */
+    void cancelOutcome(HostState host) {
+        host.breaker.release();
+    }
+
+    /** Called by the monitoring when the host is alive: try again a host with an open circuit breaker */
+    void checkCircuitBreaker(HostState host) {
+        if (host.breaker.tryHalfOpen(System.currentTimeMillis())) {
+            logger.info("Circuit breaker of " + host + " is now " + host.breaker.getState());
+            rebuildAliveHosts();
+        }
+    }
+
+    /** Attach a request context to the current thread, null to detach it */
+    void setRequestContext(RequestContext ctx) {
+        if (ctx == null) {
+            requestContext.remove();
+        } else {
+            requestContext.set(ctx);
+        }
+    }
+
+    RequestContext getRequestContext() {
+        return requestContext.get();
     }
 
     /**
-     * Get the host that should be used next in the round-robin dispatch
+     * Get the host that should be used next according to the selection policy
      * @return a HostConfiguration that should be passed to the HttpClient
      */
     public HostConfiguration getHostToUse() throws IOException {
-        synchronized(this) { 
-            HostState hs = getNextRoundRobinHost();
-            return hs.configuration;
-        }
+        return selectHost().configuration;
     }
 
     /* *************************** isAlive monitoring ************************* */
@@ -290,18 +463,41 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
     DummyManager dummyManager = new DummyManager();
 
     Credentials creds = null;
+    /** Preemptive "Authorization" header sent with isAlive probes, null if none */
+    String isAliveAuthorization = null;
 
     void setCredentials(Credentials creds) {
         this.creds = creds;
+        if (creds instanceof UsernamePasswordCredentials) {
+            isAliveAuthorization = BasicScheme.authenticate((UsernamePasswordCredentials)creds, "ISO-8859-1");
+        } else {
+            isAliveAuthorization = null;
+        }
     }
 
     Credentials getCredentials() {
         return creds;
     }
 
+    /** Shared state for the isAlive probes. Probes don't use cookies, so it stays empty */
+    static final HttpState probeState = new HttpState();
+
+    /** Open a new connection to a host, within the connection timeout */
+    MonitoredConnection connect(HostState host) throws IOException {
+        long start = System.nanoTime();
+        try {
+            MonitoredConnection c = host.connect(connectionTimeout);
+            metrics.connects.recordSince(start);
+            return c;
+        } catch (IOException e) {
+            metrics.connectFailures.increment();
+            throw e;
+        }
+    }
+
     static boolean firstCheck = true;
     /** 
-     * Check if a connection is available.
+     * Check if a connection is available, by performing the isAlive request on this very connection.
      * Returns "true" if isAlivePath is not set.
      * Returns "true" if host is up and alive.
      * Returns "false" if host is up but not alive.
@@ -315,21 +511,28 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
             }
             return true;
         }
-        HttpClient httpClient = new HttpClient();
-        if (creds != null) {
-            httpClient.getParams().setAuthenticationPreemptive(true);
-            httpClient.getState().setCredentials(
-                    new AuthScope(connection.conn.getHost(),
-                            connection.conn.getPort(),
-                            AuthScope.ANY_REALM),
-                            creds);
+        GetMethod probe = new GetMethod("/" + isAlivePath);
+        probe.getParams().setCookiePolicy(CookiePolicy.IGNORE_COOKIES);
+        if (isAliveAuthorization != null) {
+            probe.setRequestHeader("Authorization", isAliveAuthorization);
         }
-        httpClient.getParams().setSoTimeout(isAliveTimeout);
-        int statusCode = httpClient.executeMethod(new GetMethod(connection.host.getURI() + "/" + isAlivePath));            
 
-        connection.conn.setHttpConnectionManager(dummyManager);
-        consumeLastResponse(connection.conn);
+        HttpConnection conn = connection.conn;
+        /* The probe "releases" the connection once the response is consumed: don't let it go back to the pool */
+        conn.setHttpConnectionManager(dummyManager);
+        if (!conn.isOpen()) {
+            conn.open();
+        }
+        conn.setSocketTimeout(isAliveTimeout);
 
+        /* The latency of the probe is not recorded: it is not representative of the requests */
+        int statusCode;
+        try {
+            statusCode = probe.execute(probeState, conn);
+        } finally {
+            /* Consume the response so that the connection can be reused */
+            probe.releaseConnection();
+        }
         return statusCode < 400;
     }
 
@@ -378,29 +581,33 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
             long timeout) throws ConnectionPoolTimeoutException {
         logger.debug("HttpConnectionManager.getConnection:timeout = " + timeout);
         // wrap the connection in an adapter so we can ensure it is used 
-        // only once
-        return new HttpConnectionAdapter(doGetConnection(timeout));
+        // only once. Each lease gets its own adapter, so that a stale one can't
+        // act on a later lease of the same connection
+        return new HttpConnectionAdapter(doGetConnection(timeout).conn);
     }
 
     /** 
      * Try to acquire a connection from all hosts in the cluster. Loop if all hosts are down
      * until the timeout has expired.
+     * Waits if the maximum total number of connections is reached, or if all alive hosts
+     * have reached their maximum number of connections.
      */
-    private HttpConnection doGetConnection(long timeout) throws ConnectionPoolTimeoutException {
-        // TODO: connections restriction + connections restriction timeout
-        //int maxTotalConnections = this.params.getMaxTotalConnections();
-        //int maxHostConnections = maxTotalConnections;
-
+    private MonitoredConnection doGetConnection(long timeout) throws ConnectionPoolTimeoutException {
+        long startNanos = System.nanoTime();
         long start = System.currentTimeMillis();
         boolean useTimeout = (timeout > 0);
+        long deadline = useTimeout ? start + timeout : 0;
 
         if (shutdown) {
             throw new IllegalStateException("Connection factory has been shutdown.");
         }
 
         NDC.push("acquire");
+        boolean success = false;
         try {
-            HttpConnection connection = null;
+            limiter.acquire(getMaxTotalConnections(), deadline);
+
+            MonitoredConnection connection = null;
             int loops = 0;
             while (true) {
                 loops++;
@@ -411,62 +618,150 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
                     logger.info("Restart trying to acquire on any host (loop " + loops + ")");
                 }
                 
+                long changeCount = limiter.getChangeCount();
+                long hostUpCount = getHostUpCount();
                 try {
                     connection = acquireConnectionOnAnyHost();
+                    if (connection == null) {
+                        /* All alive hosts are saturated, wait for a connection to come back.
+                         * This is not a failure, so don't count it as a loop */
+                        logger.debug("All hosts have reached their maximum number of connections, waiting");
+                        limiter.awaitChange(changeCount, deadline);
+                        loops--;
+                        continue;
+                    }
                     break;
                 } catch (PoolAcquireException e) {
-                    logger.warn("All cluster hosts are down !");
-                    if (useTimeout && (System.currentTimeMillis() - start > failTimeout)) {
+                    logger.warn("Could not acquire on any host: " + e.getMessage());
+                    long failDeadline = start + failTimeout;
+                    if (useTimeout && System.currentTimeMillis() > failDeadline) {
                         logger.warn("Timeout -> ConnectionPoolTimeoutException");
                         throw new ConnectionPoolTimeoutException("Could not acquire any connection (all hosts down)");
                     }
-                    try { Thread.sleep(50); } catch (InterruptedException e2) {}
+                    /* Wait for the monitoring to bring a host back up */
+                    awaitHostUp(hostUpCount, useTimeout ? Math.min(failDeadline, deadline) : failDeadline);
                 }
             }
+            success = true;
+            metrics.acquireWait.recordSince(startNanos);
             return connection;
         } finally {
+            if (!success) {
+                limiter.release();
+                metrics.acquireFailures.increment();
+            }
             NDC.pop();
         }
     }
 
     /**
      * Try to create a connection by looping on all hosts of the cluster.
-     * @throws PoolAcquireException if all hosts in the cluster are down
+     * @return the connection, or null if some alive hosts have reached their maximum
+     *         number of connections
+     * @throws PoolAcquireException if all hosts in the cluster are down, or if their
+     *         circuit breakers don't allow more requests
      */
-    private HttpConnection acquireConnectionOnAnyHost() throws PoolAcquireException {
-        HttpConnection connection = null;
+    private MonitoredConnection acquireConnectionOnAnyHost() throws PoolAcquireException {
+        MonitoredConnection connection = null;
+        boolean saturated = false;
+        boolean denied = false;
         for (int i = 0; i < hosts.size(); i++) {
             HostState hs = null;
             try {
-                synchronized(this) {
-                    hs = getNextRoundRobinHost();
-                }
+                hs = selectHost();
             } catch (IOException e) {
                 /* Crap, we already know that all hosts are down, break */
                 break;
             }
+            if (!hs.breaker.tryAcquire()) {
+                /* Its circuit breaker does not allow more requests, goto next.
+                 * Waiting for a release would not help: only a state change will */
+                denied = true;
+                continue;
+            }
+            boolean acquired = false;
             try {
                 connection = acquireConnection(hs);
+                if (connection == null) {
+                    /* This host has too many connections, goto next */
+                    saturated = true;
+                    continue;
+                }
+                acquired = true;
                 break;
             } catch (PoolAcquireException e) {
                 logger.info("This host (" + hs + ") is down, goto next");
+                metrics.failovers.increment();
                 // This host is down, goto next
                 continue;
+            } finally {
+                if (!acquired) {
+                    hs.breaker.release();
+                }
             }
         }
         if (connection == null) {
+            if (saturated) return null;
+            if (denied) throw new PoolAcquireException("The circuit breakers of all alive hosts are open");
             throw new PoolAcquireException("All hosts are down");
         }
-        connection.setHttpConnectionManager(this);
+        connection.conn.setHttpConnectionManager(this);
+        RequestContext ctx = requestContext.get();
+        if (ctx != null) {
+            ctx.lastHost = connection.host;
+        }
+        /* The FailoverHttpClient reports the outcome of its requests itself */
+        connection.outcomeReported = (ctx != null);
         return connection;
     }
 
-
     /**
      * Try to acquire a connection on a specific host of the cluster.
+     * The connection is counted as used from the start, so that concurrent acquires
+     * can't exceed the maximum number of connections of the host.
+     * The caller must have taken the permission of the circuit breaker of the host.
+     * @return the connection, or null if the host has reached its maximum number of connections
      * @throws PoolAcquireException if this host is down
      */ 
-    private  HttpConnection acquireConnection(HostState host) throws PoolAcquireException {
+    private MonitoredConnection acquireConnection(HostState host) throws PoolAcquireException {
+        int maxHostConnections = getMaxConnectionsPerHost(host);
+        host.lock.lock();
+        try {
+            if (maxHostConnections > 0 && host.usedConnections >= maxHostConnections) {
+                return null;
+            }
+            host.usedConnections++;
+            /* Keep track of the real maximum of connections that were allocated before the next
+             * monitoring loop
+             */
+            if (host.usedConnections > host.usedConnectionsInPast[host.usedConnectionsInPastIdx]) {
+                host.usedConnectionsInPast[host.usedConnectionsInPastIdx] = host.usedConnections;
+            }
+        } finally {
+            host.lock.unlock();
+        }
+        boolean success = false;
+        try {
+            MonitoredConnection c = doAcquireConnection(host);
+            success = true;
+            return c;
+        } finally {
+            if (!success) {
+                host.lock.lock();
+                try {
+                    host.usedConnections--;
+                } finally {
+                    host.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a working connection to a specific host of the cluster, reusing a free one if possible.
+     * @throws PoolAcquireException if this host is down
+     */ 
+    private MonitoredConnection doAcquireConnection(HostState host) throws PoolAcquireException {
         /* We are now going to loop until:
          *  - We have noticed that host is down -> fail
          *  - We have found a suitable connection:
@@ -484,7 +779,8 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
             boolean needSynchronousCheck = false;
 
             /* Try to select an existing connection */
-            synchronized(this) {
+            host.lock.lock();
+            try {
                 if (logger.isDebugEnabled()) logger.debug("Acquire connection for " + host);
                 long now = System.currentTimeMillis();
 
@@ -494,22 +790,18 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
                 }
 
                 long minDate = now - maxCheckDelayWithoutSynchronousCheck;
-                List<MonitoredConnection> recentlyChecked = host.getRecentlyCheckedConnections(minDate);
-                if (recentlyChecked.size() == 0) {
+                c = host.pollRecentlyCheckedConnection(minDate);
+                if (c == null) {
                     logger.info("No recently checked connection for " + host);
                     /* There is no recently checked connection */
                     needSynchronousCheck = true;
                     /* Let's help a bit the monitoring thread by taking a connection that was not checked recently */
-                    c = host.getOldestCheckedConnection();
+                    c = host.pollOldestCheckedConnection();
                 } else {
-                    // TODO: better scheduling ?
                     logger.debug("Have a recently checked connection");
-                    c = recentlyChecked.get(0);
-                }
-
-                if (c != null) {
-                    host.removeFreeConnection(c);
                 }
+            } finally {
+                host.lock.unlock();
             }
 
             /* There was no free connection for this host, so let's connect now */
@@ -518,24 +810,22 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
                 needSynchronousCheck = true;
                 try {
                     logger.info("No free connection, connect to: " + host);
-                    c = host.connect(connectionTimeout);
+                    c = connect(host);
                 } catch (IOException e) {
                     /* In that case, we don't care if it's a fail or timeout:
                      * we can't connect to the host in time, so the host is down.
                      */
-                    synchronized(this) {
-                        logger.info("Connection failed: " + e.getMessage() +" --> host is down");
-                        if (isAlivePath != null) {
-                            /* Only set hosts as down if there is a isAlive to wake them up later */
-                            host.down = true;
-                        }
-                        // If the host has connections, it means that they were 
-                        // established while we were trying to connect. .. So maybe the host
-                        // is not down, but to be sure, let's still consider as down and 
-                        // kill everything
-                        host.killAllConnections();
-                        throw new PoolAcquireException("Host is down (couldn't connect)", e);
+                    logger.info("Connection failed: " + e.getMessage() +" --> host is down");
+                    if (isAlivePath != null) {
+                        /* Only set hosts as down if there is a isAlive to wake them up later */
+                        setHostDown(host, true);
                     }
+                    // If the host has connections, it means that they were 
+                    // established while we were trying to connect. .. So maybe the host
+                    // is not down, but to be sure, let's still consider as down and 
+                    // kill everything
+                    host.killAllConnections();
+                    throw new PoolAcquireException("Host is down (couldn't connect)", e);
                 }
             }
             if (c == null) throw new Error("Error, null connection");
@@ -544,51 +834,56 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
             if (needSynchronousCheck) {
                 try {
                     if (logger.isDebugEnabled()) logger.debug("Check connection for " + host);
-                    boolean ret = checkConnection(c);
+                    boolean ret;
+                    long checkStart = System.nanoTime();
+                    try {
+                        ret = checkConnection(c);
+                    } finally {
+                        metrics.synchronousChecks.recordSince(checkStart);
+                    }
                     /* Host is up but not alive: just kill all connections.
                      * It's useless to try another connection: host knows it's not alive
                      */
 
                     if (ret == false) {
-                        synchronized(this) {
-                            logger.info("Host is not alive:"  + host);
-                            if (isAlivePath != null) {
-                                /* Only set hosts as down if there is a isAlive to wake them up later */
-                                host.down = true;
-                            }
-                            host.killAllConnections();
-                            throw new PoolAcquireException("Host is down (not alive)");
+                        logger.info("Host is not alive:"  + host);
+                        if (isAlivePath != null) {
+                            /* Only set hosts as down if there is a isAlive to wake them up later */
+                            setHostDown(host, true);
                         }
+                        host.killAllConnections();
+                        /* Don't forget to close this connection to avoid FD leak */
+                        c.conn.close();
+                        throw new PoolAcquireException("Host is down (not alive)");
                     } else {
                         // Great, we have a working connection !
                         break;
                     }
                 } catch (IOException e) {
-                    synchronized(this) {
-                        if (e instanceof SocketTimeoutException) {
-                            /* Timeout while trying to get isAlive -> host is hanged.
-                             * Don't waste time checking connections, we would just timeout more.
-                             * So, kill everything
-                             */
-                            logger.info("Host isAlive check timeout: " + host);
-                            host.down = true;
-                            host.killAllConnections();
-                            /* Don't forget to close this connection to avoid FD leak */
-                            c.conn.close();
-                            throw new PoolAcquireException("Host is down (isAlive timeout)", e);
-                        } else {
-                            /* Connection failure. Server looks down (connection reset by peer). But it could
-                             * be only that connection which failed (TCP timeout for example). In that case, 
-                             * we try to fast-kill the stale connections and we retry. Either there are still
-                             * some alive connections and we can retry with them, or the loop will try to 
-                             * reconnect and success (for example, the host went down and up very fast) or fail 
-                             */
-                            logger.info("Host isAlive check failed: " + host + ": " + e.getMessage());
-                            host.killStaleConnections();
-                            /* Don't forget to close this connection to avoid FD leak */
-                            c.conn.close();
-                            continue;
-                        }
+                    if (e instanceof SocketTimeoutException) {
+                        /* Timeout while trying to get isAlive -> host is hanged.
+                         * Don't waste time checking connections, we would just timeout more.
+                         * So, kill everything
+                         */
+                        logger.info("Host isAlive check timeout: " + host);
+                        setHostDown(host, true);
+                        host.killAllConnections();
+                        /* Don't forget to close this connection to avoid FD leak */
+                        c.conn.close();
+                        throw new PoolAcquireException("Host is down (isAlive timeout)", e);
+                    } else {
+                        /* Connection failure. Server looks down (connection reset by peer). But it could
+                         * be only that connection which failed (TCP timeout for example). In that case, 
+                         * we try to fast-kill the stale connections and we retry. Either there are still
+                         * some alive connections and we can retry with them, or the loop will try to 
+                         * reconnect and success (for example, the host went down and up very fast) or fail 
+                         * The sweep is done without the lock.
+                         */
+                        logger.info("Host isAlive check failed: " + host + ": " + e.getMessage());
+                        /* Don't forget to close this connection to avoid FD leak */
+                        c.conn.close();
+                        host.killStaleConnections();
+                        continue;
                     }
                 }
             } else {
@@ -608,22 +903,19 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
             throw new Error("Failed to set socket timeout", e);
         }
 
-        synchronized(this) {
-            host.usedConnections++;
-            /* Keep track of the real maximum of connections that were allocated before the next
-             * monitoring loop
-             */
-            if (host.usedConnections > host.usedConnectionsInPast[host.usedConnectionsInPastIdx]) {
-                host.usedConnectionsInPast[host.usedConnectionsInPastIdx] = host.usedConnections;
-            }
+        host.lock.lock();
+        try {
+            c.leased = true;
+            c.leaseStartTime = System.currentTimeMillis();
+        } finally {
+            host.lock.unlock();
         }
         
         // We do stale checking ourselves, DO NOT do it !
         c.conn.getParams().setDefaults(this.getParams());
         c.conn.getParams().setStaleCheckingEnabled(false);
         c.conn.setHttpConnectionManager(this);
-        /* We loose the association with the monitored connection, we'll recreate one at release time */
-        return c.conn;
+        return c;
     }
 
     /* ************************ Entry point: release ******************** */
@@ -637,75 +929,283 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
         logger.trace("enter HttpConnectionManager.releaseConnection(HttpConnection)");
 
         if (conn instanceof HttpConnectionAdapter) {
-            conn = ((HttpConnectionAdapter) conn).getWrappedConnection();
+            HttpConnectionAdapter adapter = (HttpConnectionAdapter) conn;
+            conn = adapter.getWrappedConnection();
+            adapter.detach();
+        }
+        if (!(conn instanceof PooledHttpConnection)) {
+            logger.warn("Releasing a connection that does not belong to the pool, closing it");
+            if (conn != null) conn.close();
+            NDC.pop();
+            return;
         }
 
-        /* Find the host state for this connection */
-        HostConfiguration config = rebuildConfigurationFromConnection(conn);
-
-        /* Rebuild the MonitoredConnection object */
-        MonitoredConnection mc = new MonitoredConnection();
-        mc.conn = conn;
+        /* The connection knows its state and its host */
+        MonitoredConnection mc = ((PooledHttpConnection) conn).monitored;
+        HostState host = mc.host;
 
-        synchronized(this) {
-            HostState host = getHostFromConfiguration(config); 
-            mc.host = host;
+        /* Closed after the lock is released */
+        boolean close = false;
+        host.lock.lock();
+        try {
+            if (!mc.leased) {
+                logger.warn("Releasing a connection that is not in use, ignoring");
+                NDC.pop();
+                return;
+            }
+            mc.leased = false;
             host.usedConnections--;
             
             if (!mc.conn.isOpen()) {
                 logger.info("Releasing a CLOSED connection !");
-                // OK, this case is the most tricky.
-                // What we know is that something went wrong with this connection, but we don't
-                // know if it was reset or timeout, because HttpClient has already hidden the details :(
-                // Maybe just the connection was broken or maybe the host is down
-                //
-                // So let's take an average path: we mark all free connections for this
-                // host as very old so that they get rechecked before any attempt
-                // to use them. Basically, we tell everyone "don't trust this host, check first"
-                host.markConnectionsAsUnchecked();
+                if (mc.outcomeReported && requestContext.get() != null) {
+                    // The request is executed by the FailoverHttpClient, which will tell us
+                    // if it was a reset or a timeout once HttpClient gives it the exception
+                    // (see hostFailure)
+                } else {
+                    // OK, this case is the most tricky.
+                    // What we know is that something went wrong with this connection, but we don't
+                    // know if it was reset or timeout, because HttpClient has already hidden the details :(
+                    // Maybe just the connection was broken or maybe the host is down
+                    //
+                    // So let's take an average path: we mark all free connections for this
+                    // host as very old so that they get rechecked before any attempt
+                    // to use them. Basically, we tell everyone "don't trust this host, check first"
+                    host.markConnectionsAsUnchecked();
+                    if (!mc.outcomeReported) {
+                        recordOutcome(host, true, System.currentTimeMillis() - mc.leaseStartTime);
+                    }
+                }
             } else {
-                if (maxIdleConnectionsPerHost != 0 && mc.host.freeConnections.size() >= maxIdleConnectionsPerHost) {
+                long now = System.currentTimeMillis();
+                host.recordLatency(now - mc.leaseStartTime, now);
+                if (!mc.outcomeReported) {
+                    recordOutcome(host, false, now - mc.leaseStartTime);
+                }
+                if (host.removed || host.closed) {
+                    logger.info("Discarding returned connection (host removed or pool shut down)");
+                    close = true;
+                } else if (maxIdleConnectionsPerHost != 0 && host.freeCount >= maxIdleConnectionsPerHost) {
                     logger.info("Discarding returned connection (too many idle ones)");
-                    mc.conn.close();
+                    close = true;
                 } else {
-                    long now = System.currentTimeMillis();
                     mc.lastMonitoringTime = now;
                     mc.lastUseTime = now;
                     host.addFreeConnection(mc);
                 }
             }
+        } finally {
+            host.lock.unlock();
         }
+        if (close) {
+            mc.conn.close();
+        }
+        limiter.release();
         NDC.pop();
     }
 
+    /* *************************** Failures reported by the client ************************* */
+
+    /** What went wrong with a connection, as seen by the client */
+    public enum FailureType {
+        /** The request timed out. Maybe it was just too complex, maybe the host is hanged */
+        TIMEOUT,
+        /** The connection failed (reset by peer, closed without response, ...) */
+        FAILED
+    }
+
+    /**
+     * React to the failure of a connection to a host. Must be called without the host lock.
+     *  - TIMEOUT: maybe the request was too complex, but maybe the host is hanged. So let's take
+     *    an average path: the free connections of the host will be rechecked before being used.
+     *  - FAILED: the connection is brain dead. Fast-kill the stale connections of the host and
+     *    check it as soon as possible.
+     */
+    void hostFailure(HostState host, FailureType type) {
+        if (type == FailureType.TIMEOUT) {
+            host.lock.lock();
+            try {
+                host.markConnectionsAsUnchecked();
+            } finally {
+                host.lock.unlock();
+            }
+        } else {
+            host.killStaleConnections();
+            setNextToMonitor(host);
+        }
+    }
+
     /* *************************** Hosts monitoring scheduler ************************* */
 
-    LinkedList<HostState> nextToMonitorList = new LinkedList<HostState>();
-    LinkedList<HostState> alreadyMonitored = new LinkedList<HostState>();
+    /** 
+     * Protects the monitoring queues and the monitoring state of the hosts.
+     * Only contended by the monitoring threads
+     */
+    final ReentrantLock monitoringLock = new ReentrantLock();
+    /** Signaled when the monitoring queues change */
+    final Condition monitoringChanged = monitoringLock.newCondition();
+    /** Hosts waiting for their next check (all hosts but the ones being checked), by deadline */
+    HostCheckQueue checkQueue = new HostCheckQueue();
+
+    /** Default delay between two checks of a host, in milliseconds */
+    long checkInterval = 1000;
+    /** Maximum delay between two checks of a host that stays down, in milliseconds */
+    long maxCheckBackoff = 30000;
+    /** The backoff delays are randomly reduced by up to this ratio */
+    double checkBackoffJitter = 0.2;
+    /** Minimum delay between the end of a check and a requested immediate recheck, in milliseconds */
+    long minRecheckInterval = 100;
+    private final Random backoffRandom = new Random();
+
+    /** Hosts for which an immediate check was requested, served before the normal rotation */
+    LinkedList<HostState> urgentToMonitor = new LinkedList<HostState>();
+
+    /** Set the delay between two checks of a specific host, 0 to use the pool default */
+    public void setHostCheckInterval(String host, int port, long interval) {
+        HostConfiguration hc = new HostConfiguration();
+        hc.setHost(host, port);
+        HostState hs = hostsMap.get(hc);
+        if (hs == null) {
+            throw new IllegalArgumentException("Host: " + host + ":" + port + " not found");
+        }
+        monitoringLock.lock();
+        try {
+            hs.checkInterval = interval;
+            if (checkQueue.contains(hs)) {
+                long effective = interval > 0 ? interval : checkInterval;
+                checkQueue.reschedule(hs, Math.min(hs.nextCheckTime, hs.lastCheckTime + effective));
+                monitoringChanged.signalAll();
+            }
+        } finally {
+            monitoringLock.unlock();
+        }
+    }
 
+    /** 
+     * Request a check of this host as soon as possible, bypassing the backoff.
+     * This "fast path" is still limited to one check every minRecheckInterval.
+     */
     void setNextToMonitor(HostState host) {
-        /* Remove the host from the two lists */
-        nextToMonitorList.remove(host);
-        alreadyMonitored.remove(host);
-        /* And put it at front of next */
-        nextToMonitorList.addFirst(host);
+        monitoringLock.lock();
+        try {
+            if (host.removed) {
+                return;
+            } else if (host.checkInProgress) {
+                host.recheckRequested = true;
+            } else if (!host.urgentCheck) {
+                host.urgentCheck = true;
+                urgentToMonitor.addLast(host);
+                monitoringChanged.signalAll();
+            }
+        } finally {
+            monitoringLock.unlock();
+        }
     }
 
-    HostState nextToMonitor() {
-        if (nextToMonitorList.size() + alreadyMonitored.size() != hosts.size()){
-            throw new Error("Inconsistent monitoring lists !!");
+    /** 
+     * Get the first host for which an immediate check was requested, and which was not
+     * checked too recently, or null if there is none. 
+     * Must be called with the monitoring lock
+     */
+    private HostState nextUrgentToMonitor(long now) {
+        Iterator<HostState> it = urgentToMonitor.iterator();
+        while (it.hasNext()) {
+            HostState hs = it.next();
+            if (!hs.checkInProgress && now - hs.lastCheckTime >= minRecheckInterval) {
+                it.remove();
+                hs.urgentCheck = false;
+                return hs;
+            }
         }
+        return null;
+    }
 
-        /* Swap buffers */
-        if (nextToMonitorList.size() == 0) {
-            LinkedList<HostState> tmp = nextToMonitorList;
-            nextToMonitorList = alreadyMonitored;
-            alreadyMonitored = tmp;
+    /**
+     * Wait until a host must be checked, and mark it as being checked.
+     * monitoringDone() must be called once the check is over.
+     */
+    HostState waitNextToMonitor() throws InterruptedException {
+        monitoringLock.lock();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                HostState next = nextUrgentToMonitor(now);
+                if (next == null) {
+                    HostState first = checkQueue.peek();
+                    if (first != null && first.nextCheckTime <= now) {
+                        next = first;
+                    }
+                }
+                if (next != null) {
+                    checkQueue.remove(next);
+                    if (next.urgentCheck) {
+                        /* This check also serves the pending immediate check request */
+                        urgentToMonitor.remove(next);
+                        next.urgentCheck = false;
+                    }
+                    next.checkInProgress = true;
+                    return next;
+                }
+                /* Sleep until the nearest deadline, or until we are notified */
+                long wakeup = now + checkInterval;
+                HostState first = checkQueue.peek();
+                if (first != null && first.nextCheckTime < wakeup) {
+                    wakeup = first.nextCheckTime;
+                }
+                for (HostState hs : urgentToMonitor) {
+                    if (!hs.checkInProgress && hs.lastCheckTime + minRecheckInterval < wakeup) {
+                        wakeup = hs.lastCheckTime + minRecheckInterval;
+                    }
+                }
+                monitoringChanged.await(Math.max(1, wakeup - now), TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            monitoringLock.unlock();
         }
+    }
+
+    /** 
+     * End the check of a host, and schedule its next check.
+     * While a host stays down, the delay between its checks grows exponentially (with
+     * some jitter) up to maxCheckBackoff, so that dead hosts don't steal the monitoring
+     * workers from the alive ones.
+     */
+    void monitoringDone(HostState host) {
+        monitoringLock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            long interval = host.checkInterval > 0 ? host.checkInterval : checkInterval;
+            long delay = interval;
+            if (host.down) {
+                host.failedChecks++;
+                int shift = Math.min(host.failedChecks - 1, 30);
+                delay = Math.max(interval, Math.min(maxCheckBackoff, interval << shift));
+                delay -= (long)(delay * checkBackoffJitter * backoffRandom.nextDouble());
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Host " + host + " is down (" + host.failedChecks + " checks), next check in " + delay + "ms");
+                }
+            } else {
+                host.failedChecks = 0;
+            }
 
-        HostState next = nextToMonitorList.removeFirst();
-        alreadyMonitored.addLast(next);
-        return next;
+            host.checkInProgress = false;
+            host.lastCheckTime = now;
+            if (host.removed) {
+                return;
+            }
+            host.nextCheckTime = now + delay;
+            checkQueue.add(host);
+            if (host.recheckRequested) {
+                host.recheckRequested = false;
+                if (!host.urgentCheck) {
+                    host.urgentCheck = true;
+                    urgentToMonitor.addLast(host);
+                }
+            }
+            monitoringChanged.signalAll();
+        } finally {
+            monitoringLock.unlock();
+        }
     }
     
     /* **************************** Inspection and helpers *************************** */
@@ -713,7 +1213,7 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
     /**
      * Gets the total number of currently active (checked out) connections
      */
-    public synchronized int getUsedConnections() {
+    public int getUsedConnections() {
         int total = 0;
         for (HostState hs : hosts) {
             total += hs.usedConnections;
@@ -727,7 +1227,7 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
     public int getConnectionsInPool() {
         int total = 0;
         for (HostState hs : hosts) {
-            total += hs.freeConnections.size();
+            total += hs.getFreeConnectionsCount();
         }
         return total;
     }
@@ -747,8 +1247,25 @@ public class MonitoredHttpConnectionManager implements HttpConnectionManager {
         this.params = params;
     }
     
+    /**
+     * Closes the free connections that were not used for more than "idleTimeout" milliseconds.
+     * This only visits the connections that became idle since the previous call.
+     */
     @Override
     public void closeIdleConnections(long idleTimeout) {
-        // TODO ?
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        int keep = getMinIdleConnections();
+        for (HostState hs : hosts) {
+            hs.closeIdleConnections(cutoff, keep);
+        }
+    }
+
+    /** Number of free connections to keep opened for each host, bounded by the pool limits */
+    int getMinIdleConnections() {
+        int min = minIdleConnectionsPerHost;
+        if (maxIdleConnectionsPerHost > 0) {
+            min = Math.min(min, maxIdleConnectionsPerHost);
+        }
+        return min;
     }
 }
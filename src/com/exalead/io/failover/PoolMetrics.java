@@ -0,0 +1,44 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of a pool. Everything is lock-free, so that it can be updated
+ * on the hot path and read by the exporters at any time. The counters are LongAdders:
+ * they are written much more often than they are read.
+ */
+public class PoolMetrics {
+    /** Time spent in getConnection, for the successful acquisitions */
+    final TimingHistogram acquireWait = new TimingHistogram();
+    /** Acquisitions that failed (timeout, all hosts down) */
+    final LongAdder acquireFailures = new LongAdder();
+    /** isAlive checks done by the clients before using a connection */
+    final TimingHistogram synchronousChecks = new TimingHistogram();
+    /** isAlive checks done by the monitoring */
+    final TimingHistogram monitoringChecks = new TimingHistogram();
+    /** Successful connections */
+    final TimingHistogram connects = new TimingHistogram();
+    final LongAdder connectFailures = new LongAdder();
+    /** Acquisitions that had to try another host because the selected one was down */
+    final LongAdder failovers = new LongAdder();
+    final LongAdder hostDownTransitions = new LongAdder();
+    final LongAdder hostUpTransitions = new LongAdder();
+    /** Requests executed again by the FailoverHttpClient after a failure */
+    final LongAdder retries = new LongAdder();
+    /** Failed requests that were not retried because the retry budget was exhausted */
+    final LongAdder retriesDenied = new LongAdder();
+    final LongAdder hedgedRequests = new LongAdder();
+}
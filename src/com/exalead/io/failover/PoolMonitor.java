@@ -0,0 +1,140 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * MBean of a pool, registered in the platform MBean server by the PoolsRegistry
+ * as "com.exalead.io.failover:type=Pool,name=<name>".
+ */
+class PoolMonitor implements PoolMonitorMXBean {
+    private final String name;
+    private final MonitoredHttpConnectionManager pool;
+
+    PoolMonitor(String name, MonitoredHttpConnectionManager pool) {
+        this.name = name;
+        this.pool = pool;
+    }
+
+    static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("com.exalead.io.failover:type=Pool,name=" + ObjectName.quote(name));
+    }
+
+    /** Register the MBean of a pool. Failures are only logged: JMX is not required to use the pool */
+    static void register(String name, MonitoredHttpConnectionManager pool) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = objectName(name);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(new PoolMonitor(name, pool), on);
+        } catch (JMException e) {
+            logger.warn("Could not register MBean of pool " + name, e);
+        }
+    }
+
+    static void unregister(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = objectName(name);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (JMException e) {
+            logger.warn("Could not unregister MBean of pool " + name, e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<HostStatus> getHosts() {
+        List<HostStatus> list = new ArrayList<HostStatus>();
+        for (HostState hs : pool.hosts) {
+            long lastCheckTime;
+            pool.monitoringLock.lock();
+            try {
+                lastCheckTime = hs.lastCheckTime;
+            } finally {
+                pool.monitoringLock.unlock();
+            }
+            list.add(new HostStatus(hs.getURI(), hs.power, hs.down, hs.getFreeConnectionsCount(),
+                    hs.usedConnections, lastCheckTime, hs.breaker.getState().toString(),
+                    hs.getLatencyEstimate()));
+        }
+        return list;
+    }
+
+    public int getUsedConnections() {
+        return pool.getUsedConnections();
+    }
+
+    public int getConnectionsInPool() {
+        return pool.getConnectionsInPool();
+    }
+
+    public long getMaxCheckDelayWithoutSynchronousCheck() {
+        return pool.maxCheckDelayWithoutSynchronousCheck;
+    }
+
+    public void setMaxCheckDelayWithoutSynchronousCheck(long delay) {
+        if (delay < 0) throw new IllegalArgumentException("Delay must be positive");
+        logger.info("Pool " + name + ": maxCheckDelayWithoutSynchronousCheck set to " + delay);
+        pool.maxCheckDelayWithoutSynchronousCheck = delay;
+    }
+
+    public int getIsAliveTimeout() {
+        return pool.isAliveTimeout;
+    }
+
+    public void setIsAliveTimeout(int timeout) {
+        /* 0 is an infinite socket timeout: a hanged host would block a monitoring worker forever */
+        if (timeout <= 0) throw new IllegalArgumentException("Timeout must be positive");
+        logger.info("Pool " + name + ": isAliveTimeout set to " + timeout);
+        pool.isAliveTimeout = timeout;
+    }
+
+    public int getApplicativeTimeout() {
+        return pool.applicativeTimeout;
+    }
+
+    public void setApplicativeTimeout(int timeout) {
+        if (timeout < 0) throw new IllegalArgumentException("Timeout must be positive");
+        logger.info("Pool " + name + ": applicativeTimeout set to " + timeout);
+        pool.applicativeTimeout = timeout;
+    }
+
+    public int getMaxIdleConnectionsPerHost() {
+        return pool.maxIdleConnectionsPerHost;
+    }
+
+    public void setMaxIdleConnectionsPerHost(int max) {
+        if (max < 0) throw new IllegalArgumentException("Maximum must be positive");
+        logger.info("Pool " + name + ": maxIdleConnectionsPerHost set to " + max);
+        pool.maxIdleConnectionsPerHost = max;
+    }
+
+    private static Logger logger = Logger.getLogger("httpclient.failover");
+}
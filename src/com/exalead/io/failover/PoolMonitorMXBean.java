@@ -0,0 +1,42 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.util.List;
+
+/**
+ * JMX view of a pool of the PoolsRegistry.
+ * The timeouts can be changed at runtime, they are used by the next acquisitions and checks.
+ */
+public interface PoolMonitorMXBean {
+    String getName();
+
+    /** State of each host of the pool */
+    List<HostStatus> getHosts();
+
+    int getUsedConnections();
+    int getConnectionsInPool();
+
+    long getMaxCheckDelayWithoutSynchronousCheck();
+    void setMaxCheckDelayWithoutSynchronousCheck(long delay);
+
+    int getIsAliveTimeout();
+    void setIsAliveTimeout(int timeout);
+
+    int getApplicativeTimeout();
+    void setApplicativeTimeout(int timeout);
+
+    int getMaxIdleConnectionsPerHost();
+    void setMaxIdleConnectionsPerHost(int max);
+}
@@ -15,7 +15,15 @@
 package com.exalead.io.failover;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
@@ -28,30 +36,114 @@ import org.apache.log4j.NDC;
  */
 
 
+/**
+ * Schedules the checks of the hosts of a pool.
+ * Each host has its own deadline for its next check. This thread waits for the nearest
+ * deadline and hands the check to a bounded pool of workers, so that checks of different
+ * hosts run concurrently, and a hanged host can only hold one worker while the others
+ * keep checking the other hosts.
+ * 
+ * In the virtual threads mode (Java 21+), the checks are not bounded: each check runs in
+ * its own virtual thread, so there is at most one lightweight prober per host at any time,
+ * and a hanged host never delays the checks of the other ones.
+ */
 public class PoolMonitoringThread extends Thread {
     MonitoredHttpConnectionManager pool;
     volatile boolean stop;
-    int loopDelay = 500;
+    /** Number of concurrent checks */
+    int nworkers = 1;
+    /** Run each check in its own virtual thread, if the JVM supports it */
+    boolean virtualThreads;
+
+    private ExecutorService workers;
+    /** Bounds the concurrent checks, null in the virtual threads mode */
+    private Semaphore idleWorkers;
 
     public void run() {
         Thread.currentThread().setName("PoolMonitoring-" + Thread.currentThread().getId());
-        while (!stop) {
-            monitorLoop();
-            try {Thread.sleep(loopDelay);} catch (InterruptedException e) {}
+        if (virtualThreads) {
+            workers = newVirtualThreadExecutor(getName() + "-prober-");
+        }
+        if (workers == null) {
+            workers = new ThreadPoolExecutor(nworkers, nworkers, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, getName() + "-worker-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            idleWorkers = new Semaphore(nworkers);
+        }
+
+        try {
+            while (!stop) {
+                /* Only pick a host when a worker can check it right now */
+                if (idleWorkers != null) idleWorkers.acquire();
+                final HostState host;
+                try {
+                    host = pool.waitNextToMonitor();
+                } catch (InterruptedException e) {
+                    if (idleWorkers != null) idleWorkers.release();
+                    throw e;
+                }
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            monitorHost(host);
+                        } catch (RuntimeException e) {
+                            logger.error("Unexpected error while monitoring " + host, e);
+                            NDC.clear();
+                        } finally {
+                            pool.monitoringDone(host);
+                            if (idleWorkers != null) idleWorkers.release();
+                        }
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            /* Stop requested */
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task. Virtual threads are
+     * looked up by reflection, so that this library still runs on older JVMs.
+     * @return the executor, or null if the JVM does not support virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method m = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, factory);
+        } catch (Exception e) {
+            logger.warn("Virtual threads are not available, using platform threads for the monitoring: " + e);
+            return null;
         }
     }
 
+    /** Stop the scheduler and the workers, and wait for the end of the scheduler */
+    public void shutdownMonitoring() {
+        stop = true;
+        interrupt();
+        try { join(); } catch (InterruptedException e) {}
+    }
+
     /** 
-     * Each loop of the monitoring thread checks one specific host using one
-     * specific connection
+     * Each check of a host uses one specific connection
      */
-    public void monitorLoop() {
-        HostState host = null;
+    void monitorHost(HostState host) {
         MonitoredConnection c = null;
 
-        synchronized(pool) {
-            host = pool.nextToMonitor();
-            NDC.push("monitor:" + host.getURI());
+        NDC.push("monitor:" + host.getURI());
+        host.lock.lock();
+        try {
             if (logger.isDebugEnabled()) {
                 logger.trace("Start monitoring loop: "+ host);
             }
@@ -59,24 +151,21 @@ public class PoolMonitoringThread extends Thread {
             /* We'll monitor this host using the connection that hasn't been checked for 
              * the most time
              */
-            c = host.getOldestCheckedConnection();
-            if (c != null) {
-                host.removeFreeConnection(c);
-            }
+            c = host.pollOldestCheckedConnection();
+        } finally {
+            host.lock.unlock();
         }
 
         /* There is no current connection for this host, so we need to connect */
         if (c == null) {
             try {
                 logger.debug("connect to host");
-                c = host.connect(pool.connectionTimeout);
+                c = pool.connect(host);
             } catch (IOException e) {
-                synchronized(pool) {
-                    logger.info("Connection failed: " + e.getMessage());
-                    /* Same logic than in pool.acquire. See comment there. */
-                    host.down = true;
-                    host.killAllConnections();
-                }
+                logger.info("Connection failed: " + e.getMessage());
+                /* Same logic than in pool.acquire. See comment there. */
+                pool.setHostDown(host, true);
+                host.killAllConnections();
                 NDC.pop();
                 return;
             }
@@ -85,16 +174,21 @@ public class PoolMonitoringThread extends Thread {
         if (c == null) throw new Error("Error, null connection");
 
         try {
-            boolean ret =  pool.checkConnection(c);
+            boolean ret;
+            long checkStart = System.nanoTime();
+            try {
+                ret = pool.checkConnection(c);
+            } finally {
+                pool.metrics.monitoringChecks.recordSince(checkStart);
+            }
             if (ret == false) {
                 logger.info("Host is not alive: " + host);
                 /* Host is up but not alive: just kill all connections.
                  * It's useless to try another connection: host knows it's not alive
                  */
-                synchronized(pool) {
-                    host.down = true;
-                    host.killAllConnections();
-                }
+                pool.setHostDown(host, true);
+                host.killAllConnections();
+                c.conn.close();
             } else {
                 if (host.down) {
                     logger.info("Host is alive: " + host);
@@ -102,41 +196,57 @@ public class PoolMonitoringThread extends Thread {
                     if (logger.isDebugEnabled()) logger.trace("Host is alive: " + host);
                 }
                 /* Everything OK */
-                synchronized(pool) {
-                    host.down = false;
-                    c.lastMonitoringTime = System.currentTimeMillis();
-                    host.addFreeConnection(c);
+                boolean keep;
+                host.lock.lock();
+                try {
+                    pool.setHostDown(host, false);
+                    /* Unless the host was removed or the pool shut down during the check */
+                    keep = !host.removed && !host.closed;
+                    if (keep) {
+                        c.lastMonitoringTime = System.currentTimeMillis();
+                        host.addFreeConnection(c);
+                    }
+                } finally {
+                    host.lock.unlock();
                 }
+                if (!keep) c.conn.close();
+                pool.checkCircuitBreaker(host);
             }
         } catch (IOException e) {
-            synchronized(pool) {
-                if (e instanceof SocketTimeoutException) {
-                    logger.info("Host isAlive check timeout: " + host);
-
-                    /* Timeout while trying to get isAlive -> host is hanged.
-                     * Checking all connections could be too costly -> kill all connections.
-                     * We'll retry later
-                     */
-                    host.down = true;
-                    host.killAllConnections();
-                    /* Don't forget to close this connection to avoid FD leak */
-                    c.conn.close();
-                } else {
-                    logger.info("Host isAlive check failure:"  + host);
-                    /* Connection failure. Server looks down (connection reset by peer). But it could
-                     * be only that connection which failed (TCP timeout for example). In that case, 
-                     * we just try to fast-kill the stale connections. 
-                     * TODO : Avoid doing this with the lock
-                     */
-                    host.down = true;
-                    host.killStaleConnections();
-                    /* Don't forget to close this connection to avoid FD leak */
-                    c.conn.close();
-                }
+            if (e instanceof SocketTimeoutException) {
+                logger.info("Host isAlive check timeout: " + host);
+
+                /* Timeout while trying to get isAlive -> host is hanged.
+                 * Checking all connections could be too costly -> kill all connections.
+                 * We'll retry later
+                 */
+                pool.setHostDown(host, true);
+                host.killAllConnections();
+                /* Don't forget to close this connection to avoid FD leak */
+                c.conn.close();
+            } else {
+                logger.info("Host isAlive check failure:"  + host);
+                /* Connection failure. Server looks down (connection reset by peer). But it could
+                 * be only that connection which failed (TCP timeout for example). In that case, 
+                 * we just try to fast-kill the stale connections, without the lock.
+                 */
+                pool.setHostDown(host, true);
+                /* Don't forget to close this connection to avoid FD leak */
+                c.conn.close();
+                host.killStaleConnections();
             }
         }
-        /* Perform auto scale-down */
-        synchronized(pool) {
+        /* Close the idle connections */
+        if (pool.maxConnectionIdleTime > 0) {
+            /* The warm connections stay opened, they are not reconnected at each idle period */
+            host.closeIdleConnections(System.currentTimeMillis() - pool.maxConnectionIdleTime,
+                    pool.getMinIdleConnections());
+        }
+
+        /* Perform auto scale-down. The connections are closed after the lock is released */
+        MonitoredConnection[] toClose = null;
+        host.lock.lock();
+        try {
             if (pool.autoScaleIdleConnections) {
                 if (++host.usedConnectionsInPastIdx == host.usedConnectionsTS) {
                     host.usedConnectionsInPastIdx = 0;
@@ -149,23 +259,90 @@ public class PoolMonitoringThread extends Thread {
                         if (host.usedConnectionsInPast[i] > max) max = host.usedConnectionsInPast[i];
                     }
                     if (logger.isDebugEnabled()) {
-                        logger.debug("Max = " + max +" cur =" + host.usedConnections + " free=" + host.freeConnections.size());
+                        logger.debug("Max = " + max +" cur =" + host.usedConnections + " free=" + host.freeCount);
                     }
-                    if (host.freeConnections.size() > max + 1) {
-                        logger.info("Closing "  + (host.freeConnections.size() - max - 1) + " connections");
-                        for (int i = 0; i < host.freeConnections.size() - max - 1; i++) {
-                            MonitoredConnection mc = host.freeConnections.remove(host.freeConnections.size() - 1);
-                            mc.conn.close();
+                    int keep = Math.max(max + 1, pool.getMinIdleConnections());
+                    if (host.freeCount > keep) {
+                        toClose = new MonitoredConnection[host.freeCount - keep];
+                        logger.info("Closing "  + toClose.length + " connections");
+                        /* Close the connections that would need a check first */
+                        for (int i = 0; i < toClose.length; i++) {
+                            toClose[i] = host.pollOldestCheckedConnection();
                         }
                     }
                 }
                 host.usedConnectionsInPast[host.usedConnectionsInPastIdx] = host.usedConnections;
             }
+        } finally {
+            host.lock.unlock();
+        }
+        if (toClose != null) {
+            for (MonitoredConnection mc : toClose) {
+                mc.conn.close();
+            }
         }
 
+        /* Keep the warm connections, after the pruning so that they are not closed right away */
+        ensureMinIdleConnections(host);
+
         NDC.pop();
         /* End check, end monitoringLoop */
     }
 
+    /**
+     * Open and check connections until the host has the minimum number of free connections.
+     * Connecting and checking are done without the lock. Stops at the first failure: the
+     * next check of the host will deal with it.
+     */
+    void ensureMinIdleConnections(HostState host) {
+        int min = pool.getMinIdleConnections();
+        int maxHostConnections = pool.getMaxConnectionsPerHost(host);
+        while (!pool.shutdown) {
+            host.lock.lock();
+            try {
+                if (host.down || host.removed || host.freeCount >= min) return;
+                if (maxHostConnections > 0 && host.freeCount + host.usedConnections >= maxHostConnections) return;
+            } finally {
+                host.lock.unlock();
+            }
+            MonitoredConnection c;
+            try {
+                c = pool.connect(host);
+            } catch (IOException e) {
+                logger.info("Could not open idle connection: " + e.getMessage());
+                return;
+            }
+            long checkStart = System.nanoTime();
+            try {
+                if (!pool.checkConnection(c)) {
+                    c.conn.close();
+                    return;
+                }
+            } catch (IOException e) {
+                logger.info("Could not check idle connection: " + e.getMessage());
+                c.conn.close();
+                return;
+            } finally {
+                pool.metrics.monitoringChecks.recordSince(checkStart);
+            }
+            boolean keep;
+            host.lock.lock();
+            try {
+                keep = !host.removed && !host.closed;
+                if (keep) {
+                    c.lastMonitoringTime = System.currentTimeMillis();
+                    host.addFreeConnection(c);
+                }
+            } finally {
+                host.lock.unlock();
+            }
+            if (!keep) {
+                c.conn.close();
+                return;
+            }
+            if (logger.isDebugEnabled()) logger.debug("Opened idle connection: " + host);
+        }
+    }
+
     private static Logger logger = Logger.getLogger("httpclient.failover");
 }
@@ -0,0 +1,31 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+
+package com.exalead.io.failover;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+
+/**
+ * An HttpConnection that knows its MonitoredConnection, so that the manager
+ * finds the connection state and its host in O(1) when it is released.
+ */
+class PooledHttpConnection extends HttpConnection {
+    final MonitoredConnection monitored;
+
+    PooledHttpConnection(HostConfiguration configuration, MonitoredConnection monitored) {
+        super(configuration);
+        this.monitored = monitored;
+    }
+}
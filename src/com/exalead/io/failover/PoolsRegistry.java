@@ -29,10 +29,31 @@ public class PoolsRegistry {
     }
 
     synchronized static void clear() {
+        for (String name : map.keySet()) {
+            PoolMonitor.unregister(name);
+        }
         map.clear();
     }
 
+    /** 
+     * Register a pool, and publish its MBean.
+     * @throws IllegalArgumentException if another pool is already registered under this name
+     */
     synchronized static void addPool(String name, MonitoredHttpConnectionManager manager){
+        MonitoredHttpConnectionManager previous = map.get(name);
+        if (previous == manager) return;
+        if (previous != null) {
+            throw new IllegalArgumentException("A pool is already registered under the name " + name);
+        }
         map.put(name, manager);
+        PoolMonitor.register(name, manager);
+    }
+
+    /** Remove a pool, only if it is still registered under this name */
+    synchronized static void removePool(String name, MonitoredHttpConnectionManager manager){
+        if (map.get(name) == manager) {
+            map.remove(name);
+            PoolMonitor.unregister(name);
+        }
     }
 }
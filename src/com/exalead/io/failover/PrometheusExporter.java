@@ -0,0 +1,157 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Renders the metrics of all the pools of the PoolsRegistry in the Prometheus text format,
+ * and optionally serves them on an embedded HTTP endpoint.
+ */
+public class PrometheusExporter {
+    static final String PREFIX = "httpclient_failover_";
+
+    /** Render the metrics of all registered pools */
+    public static String render() {
+        MetricsWriter w = new MetricsWriter();
+        for (String name : PoolsRegistry.poolNames()) {
+            MonitoredHttpConnectionManager pool = PoolsRegistry.getPool(name);
+            if (pool != null) {
+                writePool(w, name, pool);
+            }
+        }
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        w.writeTo(out);
+        out.flush();
+        return sw.toString();
+    }
+
+    private static void writePool(MetricsWriter w, String name, MonitoredHttpConnectionManager pool) {
+        PoolMetrics m = pool.metrics;
+        String labels = "pool=\"" + escape(name) + "\"";
+
+        w.histogram("acquire_wait_seconds", "Time to acquire a connection", labels, m.acquireWait);
+        w.counter("acquire_failures_total", "Connection acquisitions that failed", labels, m.acquireFailures.sum());
+        w.histogram("synchronous_check_seconds", "isAlive checks done before using a connection", labels, m.synchronousChecks);
+        w.histogram("monitoring_check_seconds", "isAlive checks done by the monitoring", labels, m.monitoringChecks);
+        w.histogram("connect_seconds", "Time to establish a connection", labels, m.connects);
+        w.counter("connect_failures_total", "Connections that could not be established", labels, m.connectFailures.sum());
+        w.counter("failovers_total", "Acquisitions that went to another host because the selected one was down", labels, m.failovers.sum());
+        w.counter("host_down_transitions_total", "Hosts marked as down", labels, m.hostDownTransitions.sum());
+        w.counter("host_up_transitions_total", "Hosts marked as up", labels, m.hostUpTransitions.sum());
+        w.counter("retries_total", "Requests retried after a failure", labels, m.retries.sum());
+        w.counter("retries_denied_total", "Requests not retried because the retry budget was exhausted", labels, m.retriesDenied.sum());
+        w.counter("hedged_requests_total", "Requests sent a second time to another host", labels, m.hedgedRequests.sum());
+        w.gauge("used_connections", "Connections currently used, all hosts", labels, pool.getUsedConnections());
+
+        for (HostState hs : pool.hosts) {
+            String hostLabels = labels + ",host=\"" + escape(hs.getURI()) + "\"";
+            w.gauge("host_up", "1 if the host is up", hostLabels, hs.down ? 0 : 1);
+            w.gauge("host_circuit_open", "1 if the circuit breaker of the host is open", hostLabels,
+                    hs.breaker.getState() == CircuitBreaker.State.OPEN ? 1 : 0);
+            w.gauge("host_free_connections", "Idle connections of the host", hostLabels, hs.getFreeConnectionsCount());
+            w.gauge("host_used_connections", "Connections of the host currently used", hostLabels, hs.usedConnections);
+            w.gauge("host_power", "Power (weight) of the host", hostLabels, hs.power);
+        }
+    }
+
+    static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /* Collects the samples by metric, since all the samples of a metric must be written together */
+    private static class MetricsWriter {
+        final Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+
+        StringBuilder family(String name, String help, String type) {
+            StringBuilder sb = families.get(name);
+            if (sb == null) {
+                sb = new StringBuilder();
+                sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+                sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+                families.put(name, sb);
+            }
+            return sb;
+        }
+
+        void sample(StringBuilder sb, String name, String labels, String value) {
+            sb.append(PREFIX).append(name).append('{').append(labels).append("} ").append(value).append('\n');
+        }
+
+        void writeTo(PrintWriter out) {
+            for (StringBuilder sb : families.values()) {
+                out.print(sb);
+            }
+        }
+
+        void counter(String name, String help, String labels, long value) {
+            sample(family(name, help, "counter"), name, labels, Long.toString(value));
+        }
+
+        void gauge(String name, String help, String labels, long value) {
+            sample(family(name, help, "gauge"), name, labels, Long.toString(value));
+        }
+
+        void histogram(String name, String help, String labels, TimingHistogram h) {
+            StringBuilder sb = family(name, help, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i < TimingHistogram.BOUNDS.length; i++) {
+                cumulative += h.getBucketCount(i);
+                sample(sb, name + "_bucket", labels + ",le=\"" + seconds(TimingHistogram.BOUNDS[i]) + "\"", Long.toString(cumulative));
+            }
+            cumulative += h.getBucketCount(TimingHistogram.BOUNDS.length);
+            sample(sb, name + "_bucket", labels + ",le=\"+Inf\"", Long.toString(cumulative));
+            sample(sb, name + "_sum", labels, seconds(h.getSum()));
+            sample(sb, name + "_count", labels, Long.toString(cumulative));
+        }
+
+        static String seconds(long micros) {
+            return Double.toString(micros / 1000000.0);
+        }
+    }
+
+    /**
+     * Serve the metrics on http://address/metrics.
+     * @return the server, to be stopped by the caller
+     */
+    public static HttpServer startServer(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                try {
+                    os.write(body);
+                } finally {
+                    os.close();
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+}
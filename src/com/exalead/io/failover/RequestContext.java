@@ -0,0 +1,32 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * State of a request executed by the FailoverHttpClient, that spans several connection
+ * acquisitions (retries, hedged copies).
+ * It is attached to the thread that executes the request, so that the connection manager
+ * can see it when HttpClient asks for a connection.
+ */
+class RequestContext {
+    /** Hosts that should not be used by this request if another host is alive. Only modified by the owner thread */
+    final Set<HostState> excludedHosts = new HashSet<HostState>();
+    /** Host of the last connection acquired for this request */
+    volatile HostState lastHost;
+    /** Set when the request is aborted on purpose: its failure is not the fault of the host */
+    volatile boolean cancelled;
+}
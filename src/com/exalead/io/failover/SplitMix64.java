@@ -0,0 +1,45 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free pseudo-random generator for the selection policies: SplitMix64 over an
+ * atomic sequence. Much cheaper than a shared java.util.Random under contention, and
+ * good enough to spread the requests.
+ */
+class SplitMix64 {
+    private final AtomicLong seed;
+
+    SplitMix64() {
+        this(System.nanoTime());
+    }
+
+    SplitMix64(long seed) {
+        this.seed = new AtomicLong(seed);
+    }
+
+    long nextLong() {
+        long z = seed.addAndGet(0x9E3779B97F4A7C15L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Uniform in [0, 1[ */
+    double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+}
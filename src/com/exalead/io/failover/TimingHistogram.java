@@ -0,0 +1,63 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free cumulative histogram of durations, for the metrics.
+ * Values are recorded in microseconds in fixed buckets, whose bounds are the usual
+ * Prometheus ones (from 0.5ms to 10s). Recording is two atomic additions.
+ */
+public class TimingHistogram {
+    /** Upper bounds of the buckets, in microseconds. The last bucket is unbounded */
+    static final long[] BOUNDS = {
+        500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+        1000000, 2500000, 5000000, 10000000
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong sum = new AtomicLong();
+
+    public void record(long micros) {
+        int i = 0;
+        while (i < BOUNDS.length && micros > BOUNDS[i]) i++;
+        counts.incrementAndGet(i);
+        sum.addAndGet(micros);
+    }
+
+    /** Record the time elapsed since "startNanos", a value of System.nanoTime() */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /** Number of values in the bucket i (not cumulative), the last one being unbounded */
+    public long getBucketCount(int i) {
+        return counts.get(i);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i <= BOUNDS.length; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /** Sum of all values, in microseconds */
+    public long getSum() {
+        return sum.get();
+    }
+}
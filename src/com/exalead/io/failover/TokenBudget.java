@@ -0,0 +1,75 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket that limits some extra work (retries, hedged requests) to a
+ * fraction of the normal traffic.
+ * Each request deposits "ratio" tokens, up to a maximum, and each extra action
+ * withdraws one token. So over time, the extra actions are at most "ratio" times
+ * the number of requests, plus a burst of "maxTokens".
+ */
+public class TokenBudget {
+    /* Tokens are stored in thousandths */
+    private static final long UNIT = 1000;
+
+    private final AtomicLong tokens;
+    private volatile long deposit;
+    private volatile long maxTokens;
+
+    /**
+     * @param ratio tokens deposited by each request
+     * @param maxTokens maximum number of tokens (burst). The bucket starts full.
+     */
+    public TokenBudget(double ratio, int maxTokens) {
+        setRatio(ratio);
+        this.maxTokens = maxTokens * UNIT;
+        this.tokens = new AtomicLong(this.maxTokens);
+    }
+
+    public void setRatio(double ratio) {
+        this.deposit = Math.round(ratio * UNIT);
+    }
+
+    public double getRatio() {
+        return deposit / (double)UNIT;
+    }
+
+    /** Called for each request */
+    public void deposit() {
+        long d = deposit;
+        long max = maxTokens;
+        while (true) {
+            long cur = tokens.get();
+            if (cur >= max) return;
+            if (tokens.compareAndSet(cur, Math.min(max, cur + d))) return;
+        }
+    }
+
+    /** @return true if the extra action is allowed (and consumed one token) */
+    public boolean tryWithdraw() {
+        while (true) {
+            long cur = tokens.get();
+            if (cur < UNIT) return false;
+            if (tokens.compareAndSet(cur, cur - UNIT)) return true;
+        }
+    }
+
+    /** Current number of tokens */
+    public double getTokens() {
+        return tokens.get() / (double)UNIT;
+    }
+}
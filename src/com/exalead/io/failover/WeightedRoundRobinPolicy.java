@@ -0,0 +1,75 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+
+package com.exalead.io.failover;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free smooth weighted round-robin amongst the alive hosts. This is the default policy.
+ * 
+ * Each host owns a range of "power" positions in [0, totalPower[. The n-th pick
+ * takes position (n * stride) mod totalPower, where the stride is coprime with
+ * totalPower and close to totalPower / golden ratio. Over totalPower consecutive
+ * picks, each position is taken exactly once (so each host gets exactly its power),
+ * and consecutive picks are spread over the range so hosts are interleaved instead
+ * of being used in bursts.
+ * A pick is one atomic increment plus a binary search.
+ */
+public class WeightedRoundRobinPolicy implements HostSelectionPolicy {
+    private final AtomicLong counter = new AtomicLong();
+
+    /* Cache of the stride for the last seen total power */
+    private static class Stride {
+        final int total;
+        final long stride;
+        Stride(int total) {
+            this.total = total;
+            this.stride = computeStride(total);
+        }
+    }
+    private volatile Stride stride = new Stride(1);
+
+    public HostState select(AliveHosts alive) {
+        return alive.get(nextIndex(alive));
+    }
+
+    /** Get the index in "alive" of the next host in the weighted round-robin */
+    int nextIndex(AliveHosts alive) {
+        Stride s = stride;
+        if (s.total != alive.totalPower) {
+            s = new Stride(alive.totalPower);
+            stride = s;
+        }
+        long total = alive.totalPower;
+        long n = (counter.getAndIncrement() & Long.MAX_VALUE) % total;
+        return alive.getIndexByPosition((int)((n * s.stride) % total));
+    }
+
+    static long computeStride(int total) {
+        if (total <= 2) return 1;
+        long stride = Math.max(1, Math.round(total * 0.6180339887));
+        while (gcd(stride, total) != 1) stride++;
+        return stride;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,174 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    CircuitBreaker.Config config;
+    CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        config = new CircuitBreaker.Config();
+        config.enabled = true;
+        config.minimumRequests = 10;
+        config.windowTime = 10000;
+        config.openTime = 5000;
+        config.halfOpenRequests = 2;
+        breaker = new CircuitBreaker(config);
+    }
+
+    /** Open the breaker at "now" with failed requests */
+    void open(long now) {
+        for (int i = 0; i < config.minimumRequests; i++) {
+            breaker.record(true, 1, now);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testDisabled() {
+        config.enabled = false;
+        for (int i = 0; i < 100; i++) {
+            assertTrue(breaker.tryAcquire());
+            assertFalse(breaker.record(true, 1, 1000));
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testMinimumRequests() {
+        for (int i = 0; i < config.minimumRequests - 1; i++) {
+            assertFalse(breaker.record(true, 1, 1000));
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.record(true, 1, 1000));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertFalse(breaker.isClosedOrHalfOpen());
+    }
+
+    @Test
+    public void testFailureRate() {
+        /* Below the threshold */
+        for (int i = 0; i < 20; i++) {
+            breaker.record(i % 3 == 0, 1, 1000);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        /* Reaches 50% */
+        for (int i = 0; i < 20; i++) {
+            breaker.record(true, 1, 1000);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testSlowRate() {
+        config.slowRequestTime = 100;
+        for (int i = 0; i < 20; i++) {
+            breaker.record(false, 50, 1000);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        for (int i = 0; i < 100; i++) {
+            breaker.record(false, 500, 1000);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testOldOutcomesLeaveTheWindow() {
+        for (int i = 0; i < config.minimumRequests - 1; i++) {
+            breaker.record(true, 1, 1000);
+        }
+        /* The failures are out of the window: not enough requests to take a decision */
+        assertFalse(breaker.record(true, 1, 1000 + config.windowTime + 1));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenAfterOpenTime() {
+        open(1000);
+        assertFalse(breaker.tryHalfOpen(1000 + config.openTime - 1));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.tryHalfOpen(1000 + config.openTime));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.isClosedOrHalfOpen());
+        /* Only once */
+        assertFalse(breaker.tryHalfOpen(1000 + config.openTime));
+    }
+
+    @Test
+    public void testHalfOpenPermits() {
+        open(1000);
+        breaker.tryHalfOpen(10000);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        /* A permit that was not used can be taken again */
+        breaker.release();
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testHalfOpenCloses() {
+        open(1000);
+        breaker.tryHalfOpen(10000);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.record(false, 1, 10001));
+        assertTrue(breaker.record(false, 1, 10002));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        /* The window was reset: the failures before the opening are forgotten */
+        for (int i = 0; i < config.minimumRequests - 1; i++) {
+            assertFalse(breaker.record(true, 1, 10003));
+        }
+    }
+
+    @Test
+    public void testHalfOpenReopensOnFailure() {
+        open(1000);
+        breaker.tryHalfOpen(10000);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.record(true, 1, 10001));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        /* The open time starts again */
+        assertFalse(breaker.tryHalfOpen(10001 + config.openTime - 1));
+        assertTrue(breaker.tryHalfOpen(10001 + config.openTime));
+    }
+
+    @Test
+    public void testHalfOpenReopensOnSlowRequest() {
+        config.slowRequestTime = 100;
+        open(1000);
+        breaker.tryHalfOpen(10000);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.record(false, 500, 10001));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testOutcomesWhileOpenAreIgnored() {
+        open(1000);
+        assertFalse(breaker.record(false, 1, 1001));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
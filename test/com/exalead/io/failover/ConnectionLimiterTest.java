@@ -0,0 +1,154 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.junit.Test;
+
+public class ConnectionLimiterTest {
+    ConnectionLimiter limiter = new ConnectionLimiter();
+
+    /** Wait until a thread is blocked in the limiter */
+    static void awaitBlocked(Thread t) throws InterruptedException {
+        while (t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TIMED_WAITING) {
+            if (!t.isAlive()) fail("Thread is not waiting");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testNoLimit() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(0, 0);
+        }
+        assertEquals(100, limiter.getLeased());
+        limiter.release();
+        assertEquals(99, limiter.getLeased());
+    }
+
+    @Test(timeout = 5000)
+    public void testDeadline() throws Exception {
+        limiter.acquire(1, 0);
+        long start = System.currentTimeMillis();
+        try {
+            limiter.acquire(1, start + 100);
+            fail("Acquired above the limit");
+        } catch (ConnectionPoolTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+        assertEquals(1, limiter.getLeased());
+        /* A past deadline fails right away */
+        try {
+            limiter.acquire(1, start);
+            fail("Acquired above the limit");
+        } catch (ConnectionPoolTimeoutException e) {
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testFifo() throws Exception {
+        limiter.acquire(1, 0);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] waiters = new Thread[3];
+        for (int i = 0; i < waiters.length; i++) {
+            final String name = "w" + i;
+            waiters[i] = new Thread() {
+                public void run() {
+                    try {
+                        limiter.acquire(1, 0);
+                        order.add(name);
+                    } catch (ConnectionPoolTimeoutException e) {
+                        order.add(e.toString());
+                    }
+                }
+            };
+            waiters[i].start();
+            /* Make sure that they queue in this order */
+            awaitBlocked(waiters[i]);
+        }
+        for (int i = 0; i < waiters.length; i++) {
+            limiter.release();
+            waiters[i].join();
+            assertEquals(i + 1, order.size());
+        }
+        assertEquals("[w0, w1, w2]", order.toString());
+        assertEquals(1, limiter.getLeased());
+    }
+
+    @Test(timeout = 5000)
+    public void testRaisedLimitServesWaiters() throws Exception {
+        limiter.acquire(1, 0);
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    limiter.acquire(2, 0);
+                } catch (ConnectionPoolTimeoutException e) {
+                }
+            }
+        };
+        waiter.start();
+        waiter.join();
+        assertEquals(2, limiter.getLeased());
+    }
+
+    @Test(timeout = 5000)
+    public void testAwaitChange() throws Exception {
+        limiter.acquire(0, 0);
+        final long count = limiter.getChangeCount();
+        Thread releaser = new Thread() {
+            public void run() {
+                try { Thread.sleep(50); } catch (InterruptedException e) {}
+                limiter.release();
+            }
+        };
+        releaser.start();
+        limiter.awaitChange(count, 0);
+        assertTrue(limiter.getChangeCount() > count);
+
+        /* No release after this count: times out */
+        long start = System.currentTimeMillis();
+        try {
+            limiter.awaitChange(limiter.getChangeCount(), start + 50);
+            fail("No release should have happened");
+        } catch (ConnectionPoolTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start >= 50);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSignalChangeWakesWaiters() throws Exception {
+        final long count = limiter.getChangeCount();
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    limiter.awaitChange(count, 0);
+                } catch (ConnectionPoolTimeoutException e) {
+                }
+            }
+        };
+        waiter.start();
+        awaitBlocked(waiter);
+        limiter.signalChange();
+        waiter.join();
+        assertEquals(0, limiter.getLeased());
+    }
+}
@@ -0,0 +1,247 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FailoverHttpClientTest {
+    FaultInjectingHttpStub stub;
+    FailoverHttpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new FaultInjectingHttpStub(2);
+        client = new FailoverHttpClient();
+        for (int i = 0; i < stub.size(); i++) {
+            client.addHost("127.0.0.1", stub.getPort(i), 1);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        stub.close();
+    }
+
+    long totalRequests() {
+        long total = 0;
+        for (int i = 0; i < stub.size(); i++) total += stub.getRequests(i);
+        return total;
+    }
+
+    void awaitRequests(long count) throws InterruptedException {
+        while (totalRequests() < count) Thread.sleep(5);
+    }
+
+    void awaitNoUsedConnection() throws InterruptedException {
+        while (client.getConnectionManager().getUsedConnections() > 0) Thread.sleep(5);
+    }
+
+    /** Check that the future failed with an IOException whose message contains "message" */
+    static void assertFailed(CompletableFuture<Integer> future, String message) throws InterruptedException {
+        try {
+            future.get();
+            fail("The request should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(e.getCause().getMessage().contains(message));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testAsyncRequest() throws Exception {
+        GetMethod method = new GetMethod("/async");
+        assertEquals(200, client.executeMethodAsync(method, 1000).get().intValue());
+        assertEquals("OK", method.getResponseBodyAsString());
+        method.releaseConnection();
+        assertEquals(0, client.getConnectionManager().getUsedConnections());
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelQueuedRequest() throws Exception {
+        client.setAsyncThreads(1);
+        stub.setFault(0, FaultInjectingHttpStub.Fault.SLOW);
+        stub.setFault(1, FaultInjectingHttpStub.Fault.SLOW);
+        GetMethod running = new GetMethod("/running");
+        CompletableFuture<Integer> first = client.executeMethodAsync(running, 5000);
+        CompletableFuture<Integer> queued = client.executeMethodAsync(new GetMethod("/queued"), 5000);
+        awaitRequests(1);
+        assertTrue(queued.cancel(true));
+        assertTrue(queued.isCancelled());
+
+        /* The queued request is never sent */
+        assertEquals(200, first.get().intValue());
+        running.releaseConnection();
+        Thread.sleep(100);
+        assertEquals(1, totalRequests());
+        assertEquals(0, client.getConnectionManager().getUsedConnections());
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelRunningRequestIsNotRetried() throws Exception {
+        stub.setFault(0, FaultInjectingHttpStub.Fault.HANG);
+        stub.setFault(1, FaultInjectingHttpStub.Fault.HANG);
+        CompletableFuture<Integer> future = client.executeMethodAsync(new GetMethod("/running"), 5000, 3);
+        awaitRequests(1);
+        assertTrue(future.cancel(true));
+
+        /* The connection goes back without being sent again, and the host is not blamed */
+        awaitNoUsedConnection();
+        Thread.sleep(100);
+        assertEquals(1, totalRequests());
+        assertEquals(0, client.getConnectionManager().metrics.retries.sum());
+        for (HostState host : client.getConnectionManager().hosts) {
+            assertEquals(CircuitBreaker.State.CLOSED, host.getCircuitBreakerState());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testShutdownFailsQueuedRequests() throws Exception {
+        client.setAsyncThreads(1);
+        stub.setFault(0, FaultInjectingHttpStub.Fault.HANG);
+        stub.setFault(1, FaultInjectingHttpStub.Fault.HANG);
+        client.executeMethodAsync(new GetMethod("/running"), 5000);
+        CompletableFuture<Integer> queued1 = client.executeMethodAsync(new GetMethod("/queued1"), 5000);
+        CompletableFuture<Integer> queued2 = client.executeMethodAsync(new GetMethod("/queued2"), 5000);
+        awaitRequests(1);
+
+        client.shutdown();
+        assertFailed(queued1, "shut down");
+        assertFailed(queued2, "shut down");
+        assertFailed(client.executeMethodAsync(new GetMethod("/after"), 5000), "shut down");
+    }
+
+    @Test(timeout = 10000)
+    public void testAbortedRequestGivesBackHalfOpenPermission() throws Exception {
+        MonitoredHttpConnectionManager pool = client.getConnectionManager();
+        pool.breakerConfig.enabled = true;
+        pool.breakerConfig.minimumRequests = 1;
+        pool.breakerConfig.openTime = 0;
+        pool.breakerConfig.halfOpenRequests = 1;
+        for (HostState host : pool.hosts) {
+            pool.recordOutcome(host, true, 1);
+            pool.checkCircuitBreaker(host);
+            assertEquals(CircuitBreaker.State.HALF_OPEN, host.getCircuitBreakerState());
+        }
+
+        /* Fails with a RuntimeException once the connection is acquired */
+        GetMethod aborted = new GetMethod("/aborted");
+        aborted.abort();
+        try {
+            client.executeMethod(aborted);
+            fail("The method was aborted");
+        } catch (IllegalStateException e) {
+        }
+
+        /* No trial permission was lost */
+        for (HostState host : pool.hosts) {
+            assertTrue(host.breaker.tryAcquire());
+            host.breaker.release();
+        }
+        assertEquals(0, pool.getUsedConnections());
+    }
+
+    @Test
+    public void testCopyGetMethod() {
+        GetMethod method = new GetMethod("/path");
+        method.setQueryString("q=1");
+        method.addRequestHeader("X-Test", "value");
+        method.getParams().setSoTimeout(1234);
+        GetMethod copy = FailoverHttpClient.copyGetMethod(method);
+        assertEquals("/path", copy.getPath());
+        assertEquals("q=1", copy.getQueryString());
+        assertEquals("value", copy.getRequestHeader("X-Test").getValue());
+        assertEquals(1234, copy.getParams().getSoTimeout());
+
+        /* The copy does not follow the changes of the original */
+        method.getParams().setSoTimeout(5678);
+        method.getParams().setParameter("x-new", "new");
+        assertEquals(1234, copy.getParams().getSoTimeout());
+        assertEquals(null, copy.getParams().getParameter("x-new"));
+    }
+
+    /** Hedge after 50ms, as much as needed */
+    void enableHedging() {
+        client.setHedgePercentile(0);
+        client.setHedgeDelay(50);
+        client.setMaxHedgedFraction(1.0);
+    }
+
+    @Test(timeout = 10000)
+    public void testNoHedgeForFastRequests() throws Exception {
+        enableHedging();
+        GetMethod method = new GetMethod("/fast");
+        HttpMethod winner = client.executeHedged(method, 5000);
+        assertSame(method, winner);
+        assertEquals("OK", winner.getResponseBodyAsString());
+        winner.releaseConnection();
+        assertEquals(1, totalRequests());
+        assertEquals(0, client.getConnectionManager().metrics.hedgedRequests.sum());
+    }
+
+    @Test(timeout = 10000)
+    public void testHedgeOnAnotherHost() throws Exception {
+        enableHedging();
+        for (int i = 0; i < stub.size(); i++) {
+            stub.setSlowDelay(i, 500);
+            stub.setFault(i, FaultInjectingHttpStub.Fault.SLOW);
+        }
+        GetMethod method = new GetMethod("/slow");
+        HttpMethod winner = client.executeHedged(method, 5000);
+        /* The first attempt answers first, 50ms before the hedge */
+        assertSame(method, winner);
+        assertEquals("OK", winner.getResponseBodyAsString());
+        assertEquals(1, client.getConnectionManager().metrics.hedgedRequests.sum());
+        /* One request on each host */
+        for (int i = 0; i < stub.size(); i++) {
+            assertEquals(1, stub.getRequests(i));
+        }
+        winner.releaseConnection();
+
+        /* The loser was aborted (its connection is closed) and released */
+        awaitNoUsedConnection();
+        assertEquals(1, client.getConnectionManager().getConnectionsInPool());
+    }
+
+    @Test(timeout = 10000)
+    public void testNoHedgeWhenBudgetIsExhausted() throws Exception {
+        enableHedging();
+        client.setMaxHedgedFraction(0);
+        while (client.getConnectionManager().hedgeBudget.tryWithdraw()) {
+        }
+        for (int i = 0; i < stub.size(); i++) {
+            stub.setSlowDelay(i, 300);
+            stub.setFault(i, FaultInjectingHttpStub.Fault.SLOW);
+        }
+        GetMethod method = new GetMethod("/slow");
+        HttpMethod winner = client.executeHedged(method, 5000);
+        assertSame(method, winner);
+        winner.releaseConnection();
+        assertEquals(1, totalRequests());
+        assertEquals(0, client.getConnectionManager().metrics.hedgedRequests.sum());
+    }
+}
@@ -0,0 +1,122 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.junit.Test;
+
+public class HostCheckQueueTest {
+    HostCheckQueue queue = new HostCheckQueue();
+
+    static HostState host(long nextCheckTime) {
+        HostState hs = new HostState();
+        hs.configuration = new HostConfiguration();
+        hs.configuration.setHost("localhost", 8080);
+        hs.nextCheckTime = nextCheckTime;
+        return hs;
+    }
+
+    /** Take the next host to check, the way the monitoring does */
+    HostState next() {
+        HostState hs = queue.peek();
+        queue.remove(hs);
+        return hs;
+    }
+
+    @Test
+    public void testOrderedByDeadline() {
+        Random random = new Random(42);
+        List<HostState> hosts = new ArrayList<HostState>();
+        for (int i = 0; i < 200; i++) {
+            HostState hs = host(random.nextInt(1000));
+            hosts.add(hs);
+            queue.add(hs);
+        }
+        assertEquals(200, queue.size());
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < 200; i++) {
+            HostState hs = next();
+            assertTrue(hs.nextCheckTime >= last);
+            assertFalse(queue.contains(hs));
+            last = hs.nextCheckTime;
+        }
+        assertEquals(0, queue.size());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void testSameDeadlineIsFifo() {
+        HostState a = host(10), b = host(10), c = host(10);
+        queue.add(a);
+        queue.add(b);
+        queue.add(c);
+        assertSame(a, next());
+        assertSame(b, next());
+        assertSame(c, next());
+    }
+
+    @Test
+    public void testRemove() {
+        HostState a = host(1), b = host(2), c = host(3), d = host(4);
+        queue.add(a);
+        queue.add(b);
+        queue.add(c);
+        queue.add(d);
+        queue.remove(b);
+        assertFalse(queue.contains(b));
+        assertEquals(-1, b.checkQueueIndex);
+        /* Removing a host that is not queued does nothing */
+        queue.remove(b);
+        assertEquals(3, queue.size());
+        queue.remove(a);
+        assertSame(c, next());
+        assertSame(d, next());
+    }
+
+    @Test
+    public void testReschedule() {
+        HostState a = host(10), b = host(20), c = host(30);
+        queue.add(a);
+        queue.add(b);
+        queue.add(c);
+        queue.reschedule(c, 5);
+        assertSame(c, queue.peek());
+        queue.reschedule(c, 25);
+        assertSame(a, next());
+        assertSame(b, next());
+        assertSame(c, next());
+
+        /* A host that is not queued only gets its deadline */
+        queue.reschedule(a, 7);
+        assertEquals(7, a.nextCheckTime);
+        assertFalse(queue.contains(a));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddTwice() {
+        HostState a = host(1);
+        queue.add(a);
+        queue.add(a);
+    }
+}
@@ -0,0 +1,115 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HostStateTest {
+    HostState host;
+    /** Number of connections closed so far */
+    int closed;
+
+    @Before
+    public void setUp() {
+        host = new HostState();
+        host.configuration = new HostConfiguration();
+        host.configuration.setHost("localhost", 8080);
+    }
+
+    /** Add a free connection (not opened, so never stale) */
+    MonitoredConnection addFree(long lastUseTime) {
+        MonitoredConnection mc = new MonitoredConnection();
+        mc.host = host;
+        mc.conn = new HttpConnection("localhost", 8080) {
+            public void close() {
+                closed++;
+                super.close();
+            }
+        };
+        mc.lastUseTime = lastUseTime;
+        mc.lastMonitoringTime = lastUseTime;
+        host.lock.lock();
+        try {
+            host.addFreeConnection(mc);
+        } finally {
+            host.lock.unlock();
+        }
+        return mc;
+    }
+
+    @Test
+    public void testStaleSweepKeepsSurvivors() {
+        for (int i = 0; i < 20; i++) addFree(1000 + i);
+        host.killStaleConnections();
+        assertEquals(20, host.getFreeConnectionsCount());
+        assertEquals(0, closed);
+    }
+
+    @Test
+    public void testStaleSweepClosesSurvivorsOfDeadHost() {
+        for (int i = 0; i < 20; i++) addFree(1000 + i);
+        host.down = true;
+        host.killStaleConnections();
+        assertEquals(0, host.getFreeConnectionsCount());
+        assertEquals(20, closed);
+    }
+
+    @Test
+    public void testStaleSweepClosesSurvivorsOfClosedPool() {
+        for (int i = 0; i < 3; i++) addFree(1000 + i);
+        host.closed = true;
+        host.killStaleConnections();
+        assertEquals(0, host.getFreeConnectionsCount());
+        assertEquals(3, closed);
+    }
+
+    @Test
+    public void testIdleEviction() {
+        for (int i = 0; i < 5; i++) addFree(1000);
+        for (int i = 0; i < 3; i++) addFree(100000);
+        assertEquals(5, host.closeIdleConnections(50000, 0));
+        assertEquals(3, host.getFreeConnectionsCount());
+        assertEquals(5, closed);
+    }
+
+    @Test
+    public void testIdleEvictionKeepsWarmConnections() {
+        for (int i = 0; i < 5; i++) addFree(1000);
+        /* Several idle periods: the warm connections are never closed */
+        for (long now = 60000; now <= 600000; now += 60000) {
+            host.closeIdleConnections(now - 30000, 2);
+            assertEquals(2, host.getFreeConnectionsCount());
+            assertEquals(3, closed);
+        }
+        /* Fresh connections count as warm ones */
+        addFree(600000);
+        addFree(600000);
+        host.closeIdleConnections(600000 - 30000, 2);
+        assertEquals(2, host.getFreeConnectionsCount());
+        assertEquals(5, closed);
+    }
+
+    @Test
+    public void testKillAllConnections() {
+        for (int i = 0; i < 5; i++) addFree(1000 + i);
+        host.killAllConnections();
+        assertEquals(0, host.getFreeConnectionsCount());
+        assertEquals(5, closed);
+    }
+}
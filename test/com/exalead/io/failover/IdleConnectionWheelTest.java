@@ -0,0 +1,106 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class IdleConnectionWheelTest {
+    IdleConnectionWheel wheel = new IdleConnectionWheel();
+    static final long NOW = 1000000;
+
+    static MonitoredConnection connection(long lastUseTime) {
+        MonitoredConnection mc = new MonitoredConnection();
+        mc.lastUseTime = lastUseTime;
+        return mc;
+    }
+
+    static Set<MonitoredConnection> toSet(MonitoredConnection chain) {
+        Set<MonitoredConnection> set = new HashSet<MonitoredConnection>();
+        for (MonitoredConnection mc = chain; mc != null; mc = mc.nextIdle) {
+            set.add(mc);
+        }
+        return set;
+    }
+
+    @Test
+    public void testExpireOnlyOldConnections() {
+        MonitoredConnection old1 = connection(NOW - 5000);
+        MonitoredConnection old2 = connection(NOW - 1001);
+        MonitoredConnection recent = connection(NOW - 999);
+        wheel.add(old1);
+        wheel.add(old2);
+        wheel.add(recent);
+
+        Set<MonitoredConnection> expired = toSet(wheel.expire(NOW - 1000));
+        assertEquals(2, expired.size());
+        assertEquals(true, expired.contains(old1));
+        assertEquals(true, expired.contains(old2));
+
+        /* Nothing more to expire at the same date */
+        assertNull(wheel.expire(NOW - 1000));
+        /* The recent one goes later */
+        assertSame(recent, wheel.expire(NOW));
+    }
+
+    @Test
+    public void testRemove() {
+        MonitoredConnection a = connection(NOW - 5000);
+        MonitoredConnection b = connection(NOW - 5000);
+        wheel.add(a);
+        wheel.add(b);
+        wheel.remove(a);
+        assertSame(b, wheel.expire(NOW));
+        assertNull(wheel.expire(NOW));
+    }
+
+    @Test
+    public void testLaterRoundIsSkipped() {
+        /* Same slot as NOW - 2000, one turn later */
+        long turn = IdleConnectionWheel.SLOTS * IdleConnectionWheel.TICK;
+        MonitoredConnection later = connection(NOW - 2000 + turn);
+        wheel.add(later);
+        assertNull(wheel.expire(NOW));
+        assertSame(later, wheel.expire(NOW + turn));
+    }
+
+    @Test
+    public void testInsertBehindCursor() {
+        wheel.add(connection(NOW - 5000));
+        wheel.expire(NOW);
+
+        /* Given back with a lastUseTime that the cursor has already passed */
+        MonitoredConnection behind = connection(NOW - 3000);
+        wheel.add(behind);
+        assertSame(behind, wheel.expire(NOW + IdleConnectionWheel.TICK));
+    }
+
+    @Test
+    public void testInsertBehindCursorDoesNotExpireRecentOnes() {
+        wheel.expire(NOW);
+        MonitoredConnection behind = connection(NOW - 3000);
+        MonitoredConnection recent = connection(NOW + 10);
+        wheel.add(behind);
+        wheel.add(recent);
+        /* They share the slot of the cursor, but only the old one expires */
+        assertSame(behind, wheel.expire(NOW + 5));
+        assertSame(recent, wheel.expire(NOW + 20));
+    }
+}
@@ -0,0 +1,89 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.junit.Test;
+
+public class LatencyAwarePolicyTest {
+    LatencyAwarePolicy policy = new LatencyAwarePolicy(1000);
+    List<HostState> hosts = new ArrayList<HostState>();
+
+    /** Add a host, measured at "updateTime" if latency >= 0 */
+    HostState host(double latency, long updateTime) {
+        HostState hs = new HostState();
+        hs.configuration = new HostConfiguration();
+        hs.configuration.setHost("localhost", 8080 + hosts.size());
+        hs.breaker = new CircuitBreaker(new CircuitBreaker.Config());
+        hs.power = 1;
+        if (latency >= 0) {
+            hs.latencyEwma = latency;
+            hs.latencyUpdateTime = updateTime;
+        }
+        hosts.add(hs);
+        return hs;
+    }
+
+    @Test
+    public void testUnmeasuredHostGetsMeanLatency() {
+        long now = System.currentTimeMillis();
+        host(10, now);
+        host(30, now);
+        HostState fresh = host(-1, 0);
+        AliveHosts alive = AliveHosts.build(hosts);
+        assertEquals(20, LatencyAwarePolicy.getMeanLatency(alive), 0.001);
+        assertEquals(20, policy.getDecayedLatency(fresh, 20, now), 0.001);
+    }
+
+    @Test
+    public void testDecayTowardsMean() {
+        HostState slow = host(100, 1000);
+        assertEquals(100, policy.getDecayedLatency(slow, 20, 1000), 0.001);
+        assertEquals(20 + 80 / Math.E, policy.getDecayedLatency(slow, 20, 2000), 0.001);
+        assertEquals(20, policy.getDecayedLatency(slow, 20, 1000000), 0.001);
+    }
+
+    @Test
+    public void testNoBurstOnUnmeasuredHost() {
+        long now = System.currentTimeMillis();
+        HostState fast = host(10, now);
+        host(30, now);
+        HostState fresh = host(-1, 0);
+        AliveHosts alive = AliveHosts.build(hosts);
+        int picksFast = 0, picksFresh = 0;
+        for (int i = 0; i < 10000; i++) {
+            HostState hs = policy.select(alive);
+            if (hs == fast) picksFast++;
+            if (hs == fresh) picksFresh++;
+        }
+        /* Weights 1/11, 1/31 and 1/21: the fresh host gets about 28% of the requests */
+        assertTrue(picksFresh > 2300 && picksFresh < 3300);
+        assertTrue(picksFast > picksFresh);
+    }
+
+    @Test
+    public void testRandomRange() {
+        SplitMix64 random = new SplitMix64(42);
+        for (int i = 0; i < 10000; i++) {
+            double d = random.nextDouble();
+            assertTrue(d >= 0 && d < 1);
+        }
+    }
+}
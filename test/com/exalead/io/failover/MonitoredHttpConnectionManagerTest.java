@@ -0,0 +1,206 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HttpConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MonitoredHttpConnectionManagerTest {
+    MonitoredHttpConnectionManager pool;
+    /* The connections are accepted by the backlog, nothing is read */
+    ServerSocket server1;
+    ServerSocket server2;
+
+    @Before
+    public void setUp() throws Exception {
+        server1 = new ServerSocket(0);
+        server2 = new ServerSocket(0);
+        pool = new MonitoredHttpConnectionManager();
+        pool.addHost("localhost", server1.getLocalPort(), 1);
+        pool.addHost("localhost", server2.getLocalPort(), 1);
+        pool.breakerConfig.enabled = true;
+        pool.breakerConfig.minimumRequests = 1;
+        pool.breakerConfig.openTime = 0;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        server1.close();
+        server2.close();
+    }
+
+    void openBreaker(HostState host) {
+        pool.recordOutcome(host, true, 1);
+        assertEquals(CircuitBreaker.State.OPEN, host.getCircuitBreakerState());
+    }
+
+    @Test(timeout = 5000)
+    public void testAllBreakersOpenFailsFast() throws Exception {
+        for (HostState host : pool.hosts) {
+            openBreaker(host);
+        }
+        long start = System.currentTimeMillis();
+        try {
+            pool.getConnectionWithTimeout(null, 0);
+            fail("All circuit breakers are open");
+        } catch (ConnectionPoolTimeoutException e) {
+        }
+        assertTrue(System.currentTimeMillis() - start < pool.failTimeout * (pool.failMaxTries + 1));
+    }
+
+    @Test(timeout = 5000)
+    public void testHalfOpenBreakerWakesWaiters() throws Exception {
+        pool.getParams().setDefaultMaxConnectionsPerHost(1);
+        HostState open = pool.hosts.get(0);
+        openBreaker(open);
+        /* The only host in the rotation is now saturated */
+        HttpConnection leased = pool.getConnectionWithTimeout(null, 0);
+
+        final HttpConnection[] acquired = new HttpConnection[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    acquired[0] = pool.getConnectionWithTimeout(null, 0);
+                } catch (ConnectionPoolTimeoutException e) {
+                }
+            }
+        };
+        waiter.start();
+        ConnectionLimiterTest.awaitBlocked(waiter);
+
+        /* The open host comes back in the rotation: the waiter uses it, without any release */
+        pool.checkCircuitBreaker(open);
+        waiter.join();
+        assertTrue(acquired[0] != null);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, open.getCircuitBreakerState());
+        pool.releaseConnection(acquired[0]);
+        pool.releaseConnection(leased);
+    }
+
+    /** Acquire and release a connection for this request, and return the host it used */
+    HostState acquireFor(RequestContext ctx) throws Exception {
+        pool.setRequestContext(ctx);
+        try {
+            pool.releaseConnection(pool.getConnectionWithTimeout(null, 0));
+        } finally {
+            pool.setRequestContext(null);
+        }
+        return ctx.lastHost;
+    }
+
+    @Test(timeout = 5000)
+    public void testRetryExcludesFailedHost() throws Exception {
+        HostState failed = pool.hosts.get(0);
+        RequestContext ctx = new RequestContext();
+        ctx.excludedHosts.add(failed);
+        for (int i = 0; i < 20; i++) {
+            assertSame(pool.hosts.get(1), acquireFor(ctx));
+        }
+        /* Unless it is the only alive host */
+        pool.setHostDown(pool.hosts.get(1), true);
+        assertSame(failed, acquireFor(ctx));
+    }
+
+    @Test(timeout = 5000)
+    public void testHostUpWakesWaiters() throws Exception {
+        pool.failTimeout = 60000;
+        HostState host = pool.hosts.get(0);
+        pool.setHostDown(host, true);
+        pool.setHostDown(pool.hosts.get(1), true);
+
+        final HttpConnection[] acquired = new HttpConnection[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    acquired[0] = pool.getConnectionWithTimeout(null, 0);
+                } catch (ConnectionPoolTimeoutException e) {
+                }
+            }
+        };
+        waiter.start();
+        ConnectionLimiterTest.awaitBlocked(waiter);
+
+        /* Served as soon as the host is up, long before the fail timeout */
+        pool.setHostDown(host, false);
+        waiter.join();
+        assertTrue(acquired[0] != null);
+        pool.releaseConnection(acquired[0]);
+    }
+
+    @Test(timeout = 5000)
+    public void testAllHostsDownFails() throws Exception {
+        pool.failTimeout = 50;
+        pool.setHostDown(pool.hosts.get(0), true);
+        pool.setHostDown(pool.hosts.get(1), true);
+        try {
+            pool.getConnectionWithTimeout(null, 0);
+            fail("All hosts are down");
+        } catch (ConnectionPoolTimeoutException e) {
+        }
+    }
+
+    /** Check the host right now and return the delay until its next check */
+    long check(HostState host) throws InterruptedException {
+        pool.setNextToMonitor(host);
+        assertSame(host, pool.waitNextToMonitor());
+        pool.monitoringDone(host);
+        return host.nextCheckTime - host.lastCheckTime;
+    }
+
+    @Test(timeout = 5000)
+    public void testCheckBackoff() throws Exception {
+        pool.checkInterval = 100;
+        pool.maxCheckBackoff = 1000;
+        pool.checkBackoffJitter = 0;
+        pool.minRecheckInterval = 0;
+        HostState host = pool.hosts.get(0);
+        host.down = true;
+        assertEquals(100, check(host));
+        assertEquals(200, check(host));
+        assertEquals(400, check(host));
+        assertEquals(800, check(host));
+        assertEquals(1000, check(host));
+        assertEquals(1000, check(host));
+        /* Back up: normal interval */
+        host.down = false;
+        assertEquals(100, check(host));
+        host.down = true;
+        assertEquals(100, check(host));
+    }
+
+    @Test(timeout = 5000)
+    public void testCheckBackoffJitter() throws Exception {
+        pool.checkInterval = 100;
+        pool.maxCheckBackoff = 1000;
+        pool.minRecheckInterval = 0;
+        HostState host = pool.hosts.get(0);
+        host.down = true;
+        for (int i = 0; i < 4; i++) check(host);
+        for (int i = 0; i < 20; i++) {
+            long delay = check(host);
+            assertTrue(delay >= 800 && delay <= 1000);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PoolsRegistryTest {
+    @After
+    public void tearDown() {
+        PoolsRegistry.clear();
+    }
+
+    @Test
+    public void testDuplicateName() {
+        MonitoredHttpConnectionManager first = new MonitoredHttpConnectionManager();
+        MonitoredHttpConnectionManager second = new MonitoredHttpConnectionManager();
+        PoolsRegistry.addPool("pool", first);
+        /* Registering the same pool again is harmless */
+        PoolsRegistry.addPool("pool", first);
+        try {
+            PoolsRegistry.addPool("pool", second);
+            fail("The name is already used");
+        } catch (IllegalArgumentException e) {
+        }
+        assertSame(first, PoolsRegistry.getPool("pool"));
+
+        /* Only the registered pool can remove its name */
+        PoolsRegistry.removePool("pool", second);
+        assertSame(first, PoolsRegistry.getPool("pool"));
+        PoolsRegistry.removePool("pool", first);
+        assertNull(PoolsRegistry.getPool("pool"));
+        PoolsRegistry.addPool("pool", second);
+        assertSame(second, PoolsRegistry.getPool("pool"));
+    }
+
+    @Test
+    public void testIsAliveTimeout() {
+        MonitoredHttpConnectionManager pool = new MonitoredHttpConnectionManager();
+        PoolMonitor monitor = new PoolMonitor("pool", pool);
+        monitor.setIsAliveTimeout(500);
+        assertEquals(500, pool.isAliveTimeout);
+        try {
+            monitor.setIsAliveTimeout(0);
+            fail("0 is an infinite timeout");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(500, pool.isAliveTimeout);
+    }
+}
@@ -0,0 +1,146 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrometheusExporterTest {
+    static final String WEIRD_NAME = "we\"ird\\pool\nname";
+
+    @Before
+    public void setUp() {
+        MonitoredHttpConnectionManager first = new MonitoredHttpConnectionManager();
+        first.addHost("localhost", 8080, 1);
+        first.addHost("localhost", 8081, 2);
+        long[] values = { 10, 500, 501, 3000, 3000, 70000, 2000000, 60000000 };
+        for (long value : values) {
+            first.metrics.acquireWait.record(value);
+        }
+        first.metrics.connects.record(800);
+
+        MonitoredHttpConnectionManager second = new MonitoredHttpConnectionManager();
+        second.addHost("localhost", 8082, 1);
+        second.metrics.acquireWait.record(100);
+
+        PoolsRegistry.addPool("first", first);
+        PoolsRegistry.addPool(WEIRD_NAME, second);
+    }
+
+    @After
+    public void tearDown() {
+        PoolsRegistry.clear();
+    }
+
+    static String metricName(String line) {
+        int end = line.indexOf('{');
+        return end < 0 ? line.substring(0, line.indexOf(' ')) : line.substring(0, end);
+    }
+
+    static long value(String line) {
+        return (long)Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+    }
+
+    @Test
+    public void testFamiliesAreWrittenOnce() {
+        Set<String> help = new HashSet<String>();
+        Set<String> types = new HashSet<String>();
+        Set<String> closed = new HashSet<String>();
+        String current = null;
+        for (String line : PrometheusExporter.render().split("\n")) {
+            if (line.startsWith("# HELP ")) {
+                String family = line.split(" ")[2];
+                assertTrue("HELP twice for " + family, help.add(family));
+            } else if (line.startsWith("# TYPE ")) {
+                String family = line.split(" ")[2];
+                assertTrue("TYPE twice for " + family, types.add(family));
+                if (current != null) closed.add(current);
+                current = family;
+            } else {
+                /* All the samples of a family follow its header */
+                String name = metricName(line);
+                assertTrue(line, name.equals(current) || name.equals(current + "_bucket")
+                        || name.equals(current + "_sum") || name.equals(current + "_count"));
+                assertFalse(closed.contains(current));
+            }
+        }
+        assertEquals(help, types);
+        assertTrue(types.contains(PrometheusExporter.PREFIX + "acquire_wait_seconds"));
+        assertTrue(types.contains(PrometheusExporter.PREFIX + "host_up"));
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        Map<String, Long> lastBucket = new HashMap<String, Long>();
+        Map<String, Double> lastBound = new HashMap<String, Double>();
+        Map<String, Long> infBucket = new HashMap<String, Long>();
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (String line : PrometheusExporter.render().split("\n")) {
+            if (line.startsWith("#")) continue;
+            String name = metricName(line);
+            if (name.endsWith("_bucket")) {
+                int le = line.indexOf(",le=\"");
+                String series = line.substring(0, le).replace("_bucket{", "{");
+                String bound = line.substring(le + 5, line.indexOf('"', le + 5));
+                assertFalse("bucket after +Inf", infBucket.containsKey(series));
+                Long previous = lastBucket.get(series);
+                assertTrue(line, previous == null || value(line) >= previous);
+                lastBucket.put(series, value(line));
+                if (bound.equals("+Inf")) {
+                    infBucket.put(series, value(line));
+                } else {
+                    Double previousBound = lastBound.get(series);
+                    assertTrue(line, previousBound == null || Double.parseDouble(bound) > previousBound);
+                    lastBound.put(series, Double.parseDouble(bound));
+                }
+            } else if (name.endsWith("_count")) {
+                counts.put(line.substring(0, line.indexOf('}')).replace("_count{", "{"), value(line));
+            }
+        }
+        assertFalse(counts.isEmpty());
+        assertEquals(counts, infBucket);
+
+        String first = PrometheusExporter.PREFIX + "acquire_wait_seconds_bucket{pool=\"first\",le=\"";
+        String render = PrometheusExporter.render();
+        assertTrue(render.contains(first + "5.0E-4\"} 2\n"));
+        assertTrue(render.contains(first + "0.001\"} 3\n"));
+        assertTrue(render.contains(first + "0.005\"} 5\n"));
+        assertTrue(render.contains(first + "10.0\"} 7\n"));
+        assertTrue(render.contains(first + "+Inf\"} 8\n"));
+        assertTrue(render.contains(PrometheusExporter.PREFIX + "acquire_wait_seconds_count{pool=\"first\"} 8\n"));
+    }
+
+    @Test
+    public void testLabelEscaping() {
+        assertEquals("a\\\\b\\\"c\\nd", PrometheusExporter.escape("a\\b\"c\nd"));
+
+        String render = PrometheusExporter.render();
+        String labels = "{pool=\"we\\\"ird\\\\pool\\nname\"";
+        assertTrue(render.contains(PrometheusExporter.PREFIX + "acquire_wait_seconds_count" + labels + "} 1\n"));
+        assertTrue(render.contains(PrometheusExporter.PREFIX + "host_up" + labels
+                + ",host=\"http://localhost:8082\"} 1\n"));
+        /* The raw newline never reaches the output */
+        assertFalse(render.contains("pool\nname"));
+    }
+}
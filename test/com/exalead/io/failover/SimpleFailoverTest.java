@@ -87,6 +87,6 @@ public class SimpleFailoverTest {
     }
 
     public static void main(String[] args) throws Exception {
-        new MyTest0().run();
+        new SimpleFailoverTest().run();
     }
 }
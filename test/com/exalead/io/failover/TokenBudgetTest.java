@@ -0,0 +1,76 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBudgetTest {
+    @Test
+    public void testStartsFull() {
+        TokenBudget budget = new TokenBudget(0.1, 10);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(budget.tryWithdraw());
+        }
+        assertFalse(budget.tryWithdraw());
+        assertEquals(0, budget.getTokens(), 0);
+    }
+
+    @Test
+    public void testRefillsWithRequests() {
+        TokenBudget budget = new TokenBudget(0.1, 10);
+        while (budget.tryWithdraw()) {
+        }
+        /* 10 requests for one extra action */
+        for (int i = 0; i < 9; i++) {
+            budget.deposit();
+        }
+        assertFalse(budget.tryWithdraw());
+        budget.deposit();
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void testBurstIsBounded() {
+        TokenBudget budget = new TokenBudget(0.5, 3);
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        assertEquals(3, budget.getTokens(), 0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(budget.tryWithdraw());
+        }
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void testRatioChange() {
+        TokenBudget budget = new TokenBudget(0.1, 10);
+        while (budget.tryWithdraw()) {
+        }
+        budget.setRatio(0);
+        assertEquals(0, budget.getRatio(), 0);
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        assertFalse(budget.tryWithdraw());
+        budget.setRatio(1);
+        budget.deposit();
+        assertTrue(budget.tryWithdraw());
+    }
+}
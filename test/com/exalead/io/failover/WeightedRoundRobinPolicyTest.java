@@ -0,0 +1,94 @@
+/* Copyright 2010 Exalead S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License. 
+ */
+package com.exalead.io.failover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.junit.Test;
+
+public class WeightedRoundRobinPolicyTest {
+    static final int[] HOST_COUNTS = { 1, 2, 3, 7, 16, 64 };
+
+    /** Same distributions as AcquireReleaseBenchmark */
+    static int powerOf(String power, int host, int hosts) {
+        if ("skewed".equals(power)) return 1 + host % 10;
+        if ("dominant".equals(power)) return host == 0 ? Math.max(1, hosts - 1) : 1;
+        return 1;
+    }
+
+    static AliveHosts build(String power, int count) {
+        List<HostState> hosts = new ArrayList<HostState>();
+        for (int i = 0; i < count; i++) {
+            HostState hs = new HostState();
+            hs.configuration = new HostConfiguration();
+            hs.configuration.setHost("localhost", 8080 + i);
+            hs.breaker = new CircuitBreaker(new CircuitBreaker.Config());
+            hs.power = powerOf(power, i, count);
+            hosts.add(hs);
+        }
+        return AliveHosts.build(hosts);
+    }
+
+    void checkExactShares(String power) {
+        for (int count : HOST_COUNTS) {
+            AliveHosts alive = build(power, count);
+            WeightedRoundRobinPolicy policy = new WeightedRoundRobinPolicy();
+            /* Any cycle works, not only the first one */
+            for (int i = 0; i < 12345; i++) {
+                policy.nextIndex(alive);
+            }
+            for (int cycle = 0; cycle < 3; cycle++) {
+                int[] picks = new int[count];
+                for (int i = 0; i < alive.totalPower; i++) {
+                    picks[policy.nextIndex(alive)]++;
+                }
+                for (int i = 0; i < count; i++) {
+                    assertEquals(alive.get(i).power, picks[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUniform() {
+        checkExactShares("uniform");
+    }
+
+    @Test
+    public void testSkewed() {
+        checkExactShares("skewed");
+    }
+
+    @Test
+    public void testDominant() {
+        checkExactShares("dominant");
+    }
+
+    @Test
+    public void testUniformIsInterleaved() {
+        AliveHosts alive = build("uniform", 16);
+        WeightedRoundRobinPolicy policy = new WeightedRoundRobinPolicy();
+        int last = policy.nextIndex(alive);
+        for (int i = 0; i < 1000; i++) {
+            int index = policy.nextIndex(alive);
+            assertTrue(index != last);
+            last = index;
+        }
+    }
+}